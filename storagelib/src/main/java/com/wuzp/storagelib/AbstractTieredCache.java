@@ -0,0 +1,400 @@
+package com.wuzp.storagelib;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Base of the caches that keep recently used entries in a faster front tier in front
+ * of a {@link DiskCache}. Subclasses only provide the front tier.
+ * <p>
+ * Writes go through to disk before the front tier is updated, holding a lock stripe
+ * of the key across both tiers so that writes of a key reach the front tier in the
+ * order they reached disk. Entries read from disk are promoted into the front tier
+ * unless a write raced with the read, which the front tier detects by its generation.
+ */
+abstract class AbstractTieredCache implements Cache {
+
+    /**
+     * Number of lock stripes ordering the writes of a key; must be a power of two.
+     */
+    private static final int WRITE_STRIPES = 32;
+
+    protected final DiskCache mDisk;
+
+    private final AtomicLong mFrontHits = new AtomicLong();
+
+    private final AtomicLong mFrontMisses = new AtomicLong();
+
+    private final AtomicLong mDiskHits = new AtomicLong();
+
+    private final AtomicLong mDiskMisses = new AtomicLong();
+
+    private final LoadCoalescer mLoads = new LoadCoalescer();
+
+    private final StatsRecorder mStats = new StatsRecorder();
+
+    /**
+     * Striped locks held across the disk write and the front tier update of a key.
+     */
+    private final Lock[] mWriteLocks = new Lock[WRITE_STRIPES];
+
+    AbstractTieredCache(final DiskCache disk) {
+        this.mDisk = disk;
+        for (int i = 0; i < WRITE_STRIPES; i++) {
+            this.mWriteLocks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Returns true if the front tier holds the key.
+     */
+    abstract boolean frontHas(String key);
+
+    /**
+     * Returns the value the front tier holds for the key, or null if it has none.
+     */
+    abstract <T> T frontGet(String key);
+
+    /**
+     * Returns the generation of the front tier, incremented by every write to it.
+     */
+    abstract long frontGeneration();
+
+    /**
+     * Stores an entry read from disk in the front tier, unless the front tier was
+     * written since the generation was sampled.
+     *
+     * @param value The decoded value of the entry.
+     */
+    abstract void frontPromote(String key, Entry entry, Object value, long generation);
+
+    /**
+     * Stores an entry just written to disk in the front tier.
+     *
+     * @param value The value the entry was encoded from.
+     */
+    abstract void frontPut(String key, Entry entry, Object value);
+
+    abstract void frontRemove(String key);
+
+    abstract void frontClear();
+
+    @Override
+    public boolean has(final String key) {
+        return frontHas(key) || this.mDisk.has(key);
+    }
+
+    @Override
+    public <T> T get(final String key) {
+        final long start = System.nanoTime();
+        try {
+            final T value = frontGet(key);
+            if (value != null) {
+                this.mFrontHits.incrementAndGet();
+                this.mStats.recordHit();
+                return value;
+            }
+
+            this.mFrontMisses.incrementAndGet();
+
+            final long generation = frontGeneration();
+            final Entry entry = this.mDisk.getEntry(key);
+            if (null == entry || entry.data == null || entry.isExpired()) {
+                this.mDiskMisses.incrementAndGet();
+                this.mStats.recordMiss();
+                return null;
+            }
+
+            this.mDiskHits.incrementAndGet();
+            this.mStats.recordHit();
+            final T decoded = this.mDisk.decode(entry);
+            frontPromote(key, entry, decoded, generation);
+            return decoded;
+        } finally {
+            this.mStats.mGet.recordSince(start);
+        }
+    }
+
+    @Override
+    public boolean put(final String key, final Object value, final long ttl) {
+        DiskCache.checkKey(key);
+        final long start = System.nanoTime();
+        final Lock lock = writeLockFor(key);
+        lock.lock();
+        try {
+            final Entry entry = this.mDisk.encode(value, ttl);
+            if (entry == null || !this.mDisk.putEntry(key, entry)) {
+                frontRemove(key);
+                return false;
+            }
+
+            frontPut(key, entry, value);
+            return true;
+        } finally {
+            lock.unlock();
+            this.mStats.mPut.recordSince(start);
+        }
+    }
+
+    @Override
+    public <T> Map<String, T> getAll(final Collection<String> keys) {
+        final Map<String, T> values = new LinkedHashMap<String, T>();
+        for (final String key : keys) {
+            final T value = get(key);
+            if (value != null) {
+                values.put(key, value);
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public boolean putAll(final Map<String, ?> values, final long ttl) {
+        final List<Lock> locks = lockAll(values.keySet());
+        try {
+            final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+            boolean stored = true;
+            for (final Map.Entry<String, ?> e : values.entrySet()) {
+                DiskCache.checkKey(e.getKey());
+                final Entry entry = this.mDisk.encode(e.getValue(), ttl);
+                if (entry == null) {
+                    frontRemove(e.getKey());
+                    stored = false;
+                } else {
+                    entries.put(e.getKey(), entry);
+                }
+            }
+
+            final Set<String> failed = this.mDisk.putEntries(entries);
+            for (final Map.Entry<String, Entry> e : entries.entrySet()) {
+                if (failed.contains(e.getKey())) {
+                    frontRemove(e.getKey());
+                } else {
+                    frontPut(e.getKey(), e.getValue(), values.get(e.getKey()));
+                }
+            }
+            return failed.isEmpty() && stored;
+        } finally {
+            unlockAll(locks);
+        }
+    }
+
+    @Override
+    public <T> T getOrLoad(final String key, final Loader<T> loader, final long ttl) {
+        final T cached = get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        return this.mLoads.load(key, new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                // a load that completed after this caller missed may have stored it already
+                final T cached = frontGet(key);
+                if (cached != null) {
+                    return cached;
+                }
+                final T stored = AbstractTieredCache.this.mDisk.readValue(key);
+                if (stored != null) {
+                    return stored;
+                }
+
+                final T value = AbstractTieredCache.this.mStats.load(key, loader);
+                if (value != null) {
+                    put(key, value, ttl);
+                }
+                return value;
+            }
+        });
+    }
+
+    @Override
+    public void initialize() {
+        this.mDisk.initialize();
+    }
+
+    @Override
+    public void invalidate(final String key, final boolean fullExpire) {
+        final Lock lock = writeLockFor(key);
+        lock.lock();
+        try {
+            this.mDisk.invalidate(key, fullExpire);
+            frontRemove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void remove(final String key) {
+        final Lock lock = writeLockFor(key);
+        lock.lock();
+        try {
+            this.mDisk.remove(key);
+            frontRemove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void removeAll(final Collection<String> keys) {
+        final List<Lock> locks = lockAll(keys);
+        try {
+            this.mDisk.removeAll(keys);
+            for (final String key : keys) {
+                frontRemove(key);
+            }
+        } finally {
+            unlockAll(locks);
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (final Lock lock : this.mWriteLocks) {
+            lock.lock();
+        }
+        try {
+            this.mDisk.clear();
+            frontClear();
+            this.mLoads.clear();
+        } finally {
+            for (final Lock lock : this.mWriteLocks) {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Streams are served by the disk tier unless a subclass can serve them from its
+     * front tier.
+     */
+    @Override
+    public InputStream openInputStream(final String key) {
+        return this.mDisk.openInputStream(key);
+    }
+
+    @Override
+    public Editor edit(final String key, final long ttl) {
+        final Editor editor = this.mDisk.edit(key, ttl);
+        if (editor == null) {
+            return null;
+        }
+
+        return new Editor() {
+            @Override
+            public OutputStream getOutputStream() throws IOException {
+                return editor.getOutputStream();
+            }
+
+            @Override
+            public boolean commit() {
+                final Lock lock = writeLockFor(key);
+                lock.lock();
+                try {
+                    final boolean committed = editor.commit();
+                    frontRemove(key);
+                    return committed;
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public void abort() {
+                editor.abort();
+            }
+        };
+    }
+
+    /**
+     * Returns the statistics of the requests made to this cache. Evictions, expiries,
+     * bytes, initialization and pruning are those of the disk tier.
+     */
+    @Override
+    public CacheStats getStats() {
+        return this.mStats.snapshot(this.mDisk.getStats());
+    }
+
+    /**
+     * Returns the number of reads served from the front tier.
+     */
+    long frontHitCount() {
+        return this.mFrontHits.get();
+    }
+
+    /**
+     * Returns the number of reads that had to fall through to disk.
+     */
+    long frontMissCount() {
+        return this.mFrontMisses.get();
+    }
+
+    /**
+     * Returns the number of reads served from disk.
+     */
+    long diskHitCount() {
+        return this.mDiskHits.get();
+    }
+
+    /**
+     * Returns the number of reads found in neither tier.
+     */
+    long diskMissCount() {
+        return this.mDiskMisses.get();
+    }
+
+    /**
+     * Returns the lock stripe ordering the writes of the given key.
+     */
+    private Lock writeLockFor(final String key) {
+        return this.mWriteLocks[stripeOf(key)];
+    }
+
+    /**
+     * Locks the stripes of all the given keys, in stripe order so that concurrent
+     * bulk writes cannot deadlock.
+     *
+     * @return The locks taken, to pass to {@link #unlockAll(List)}.
+     */
+    private List<Lock> lockAll(final Collection<String> keys) {
+        final Set<Integer> stripes = new TreeSet<Integer>();
+        for (final String key : keys) {
+            stripes.add(stripeOf(key));
+        }
+
+        final List<Lock> locks = new ArrayList<Lock>(stripes.size());
+        for (final int stripe : stripes) {
+            final Lock lock = this.mWriteLocks[stripe];
+            lock.lock();
+            locks.add(lock);
+        }
+        return locks;
+    }
+
+    private static void unlockAll(final List<Lock> locks) {
+        for (final Lock lock : locks) {
+            lock.unlock();
+        }
+    }
+
+    private static int stripeOf(final String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return h & (WRITE_STRIPES - 1);
+    }
+}
@@ -0,0 +1,117 @@
+package com.wuzp.storagelib;
+
+import com.wuzp.storagelib.Cache.Entry;
+
+/**
+ * Decides whether a put is stored at all, before any space is made for it. Entries
+ * heavier than a maximum weight are always turned away. Entries at or above a gate
+ * weight are only admitted once their key has been requested often enough, as
+ * estimated by a {@link FrequencySketch}, so that a large object read once passes
+ * through to the caller without evicting the small entries of the working set.
+ * <p>
+ * The cache reports every read through {@link #record(String)}, hits and misses
+ * alike; a value loaded after a miss therefore counts that miss. Reads are buffered
+ * in a {@link ReadBuffer} rather than counted under a lock.
+ */
+class AdmissionFilter {
+
+    /**
+     * Default number of requests a key needs before a gated entry is admitted.
+     */
+    static final int DEFAULT_MIN_FREQUENCY = 2;
+
+    private final Weigher mWeigher;
+
+    private final long mMaxWeight;
+
+    private final long mGateWeight;
+
+    private final int mMinFrequency;
+
+    private final FrequencySketch mSketch = new FrequencySketch(256);
+
+    private final ReadBuffer mReads = new ReadBuffer() {
+        @Override
+        void replay(final String key) {
+            AdmissionFilter.this.mSketch.increment(key);
+        }
+    };
+
+    /**
+     * Number of entries the sketch is sized for, read without the lock so that puts
+     * only lock to grow it.
+     */
+    private volatile int mCapacity;
+
+    /**
+     * @param weigher      Weighs the entries.
+     * @param maxWeight    Entries heavier than this are never admitted.
+     * @param gateWeight   Entries at least this heavy need minFrequency requests.
+     * @param minFrequency The number of requests a gated entry's key needs, at most 15.
+     */
+    AdmissionFilter(final Weigher weigher, final long maxWeight, final long gateWeight, final int minFrequency) {
+        if (minFrequency < 0 || minFrequency > 15) {
+            throw new IllegalArgumentException("minFrequency must be between 0 and 15: " + minFrequency);
+        }
+
+        this.mWeigher = weigher;
+        this.mMaxWeight = maxWeight;
+        this.mGateWeight = gateWeight;
+        this.mMinFrequency = minFrequency;
+        this.mCapacity = this.mSketch.capacity();
+    }
+
+    /**
+     * Creates a filter weighing entries in bytes, which admits entries of at least
+     * gateBytes once their key was requested {@link #DEFAULT_MIN_FREQUENCY} times.
+     */
+    AdmissionFilter(final long maxBytes, final long gateBytes) {
+        this(Weigher.BYTES, maxBytes, gateBytes, DEFAULT_MIN_FREQUENCY);
+    }
+
+    /**
+     * Records a request for the key.
+     */
+    void record(final String key) {
+        this.mReads.record(key);
+    }
+
+    /**
+     * Returns true if the entry may be stored.
+     */
+    boolean admit(final String key, final Entry entry) {
+        final long weight = this.mWeigher.weigh(key, entry);
+        if (weight > this.mMaxWeight) {
+            return false;
+        }
+        if (weight < this.mGateWeight) {
+            return true;
+        }
+
+        this.mReads.lock();
+        try {
+            return this.mSketch.frequency(key) >= this.mMinFrequency;
+        } finally {
+            this.mReads.unlock();
+        }
+    }
+
+    /**
+     * Grows the sketch to track about the given number of keys; called by the cache as
+     * its index grows. The sketch doubles in size at a time and keeps its counts, so
+     * this only locks once the index has outgrown it.
+     */
+    void ensureCapacity(final int expectedEntries) {
+        if (expectedEntries <= this.mCapacity) {
+            return;
+        }
+
+        this.mReads.lock();
+        try {
+            this.mSketch.ensureCapacity(expectedEntries);
+            this.mCapacity = this.mSketch.capacity();
+        } finally {
+            this.mReads.unlock();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.wuzp.storagelib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Value codec for registered types, each written by its own {@link Adapter} straight
+ * to a {@link DataOutput}. Unlike a Parcel there is no reflection and no class name
+ * in the data, only the type id the type was registered with.
+ * <p>
+ * Type ids are stored with every entry, so a type must keep its id, and its adapter
+ * must keep reading what earlier versions wrote, for as long as such entries may be
+ * cached.
+ */
+class BinaryValueCodec implements ValueCodec {
+
+    static final int ID = 3;
+
+    /**
+     * Writes and reads the values of one registered type.
+     */
+    interface Adapter<T> {
+
+        void write(final T value, final DataOutput out) throws IOException;
+
+        T read(final DataInput in) throws IOException;
+    }
+
+    private final Map<Class<?>, Registration<?>> mByType = new ConcurrentHashMap<Class<?>, Registration<?>>();
+
+    private final Map<Integer, Registration<?>> mById = new ConcurrentHashMap<Integer, Registration<?>>();
+
+    /**
+     * Registers a type. Only values of exactly this class are encoded by this codec;
+     * subclasses have to be registered on their own.
+     *
+     * @param type    The class of the values.
+     * @param typeId  The id stored with every value of the type.
+     * @param adapter Writes and reads the values.
+     */
+    <T> void register(final Class<T> type, final int typeId, final Adapter<T> adapter) {
+        final Registration<T> registration = new Registration<T>(typeId, adapter);
+        final Registration<?> existing = this.mById.get(typeId);
+        if (existing != null && existing != this.mByType.get(type)) {
+            throw new IllegalArgumentException("Type id " + typeId + " is already registered");
+        }
+
+        this.mById.put(typeId, registration);
+        this.mByType.put(type, registration);
+    }
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public boolean canEncode(final Object value) {
+        return value != null && this.mByType.containsKey(value.getClass());
+    }
+
+    @Override
+    public byte[] encode(final Object value) throws IOException {
+        final Registration<Object> registration = (Registration<Object>) this.mByType.get(value.getClass());
+        if (registration == null) {
+            throw new IOException("Unregistered type " + value.getClass().getName());
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(registration.mTypeId);
+        registration.mAdapter.write(value, out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public Object decode(final byte[] data) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        final int typeId = in.readInt();
+        final Registration<?> registration = this.mById.get(typeId);
+        if (registration == null) {
+            throw new IOException("Unregistered type id " + typeId);
+        }
+
+        return registration.mAdapter.read(in);
+    }
+
+    private static final class Registration<T> {
+
+        private final int mTypeId;
+
+        private final Adapter<T> mAdapter;
+
+        private Registration(final int typeId, final Adapter<T> adapter) {
+            this.mTypeId = typeId;
+            this.mAdapter = adapter;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.wuzp.storagelib;
+
+import java.util.Iterator;
+
+/**
+ * Wraps an {@link EvictionPolicy} so that reads do not contend on it. Reads are
+ * recorded in a {@link ReadBuffer} and replayed into the policy in batches; writes,
+ * removals and eviction replay the buffer first. A lost read only costs the policy a
+ * little recency or frequency.
+ */
+class BufferedAccessPolicy implements EvictionPolicy {
+
+    private final EvictionPolicy mPolicy;
+
+    private final ReadBuffer mReads;
+
+    BufferedAccessPolicy(final EvictionPolicy policy) {
+        this.mPolicy = policy;
+        this.mReads = new ReadBuffer() {
+            @Override
+            void replay(final String key) {
+                policy.onAccess(key);
+            }
+        };
+    }
+
+    @Override
+    public void onPut(final String key, final long size) {
+        this.mReads.lock();
+        try {
+            this.mPolicy.onPut(key, size);
+        } finally {
+            this.mReads.unlock();
+        }
+    }
+
+    @Override
+    public void onAccess(final String key) {
+        this.mReads.record(key);
+    }
+
+    @Override
+    public void onRemove(final String key) {
+        this.mReads.lock();
+        try {
+            this.mPolicy.onRemove(key);
+        } finally {
+            this.mReads.unlock();
+        }
+    }
+
+    @Override
+    public void onEvict(final String key) {
+        this.mReads.lock();
+        try {
+            this.mPolicy.onEvict(key);
+        } finally {
+            this.mReads.unlock();
+        }
+    }
+
+    @Override
+    public Iterator<String> evictionOrder() {
+        this.mReads.lock();
+        try {
+            return this.mPolicy.evictionOrder();
+        } finally {
+            this.mReads.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        this.mReads.lock();
+        try {
+            this.mReads.discard();
+            this.mPolicy.clear();
+        } finally {
+            this.mReads.unlock();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.wuzp.storagelib;
+
+/**
+ * Value codec storing byte arrays as they are. Entries written through an
+ * {@link Cache.Editor} are decoded by it.
+ */
+class BytesValueCodec implements ValueCodec {
+
+    static final int ID = 1;
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public boolean canEncode(final Object value) {
+        return value instanceof byte[];
+    }
+
+    @Override
+    public byte[] encode(final Object value) {
+        return (byte[]) value;
+    }
+
+    @Override
+    public Object decode(final byte[] data) {
+        return data;
+    }
+}
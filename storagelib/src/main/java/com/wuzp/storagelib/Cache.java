@@ -3,8 +3,14 @@ package com.wuzp.storagelib;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
+import java.util.Set;
 
 public interface Cache {
 
@@ -33,6 +39,37 @@ public interface Cache {
      */
     boolean put(final String key, final Object value, long ttl);
 
+    /**
+     * Retrieves several entries from the cache in one pass.
+     *
+     * @param keys Cache keys
+     * @return The values found, by key, in the iteration order of the keys; missing
+     * and expired entries are left out
+     */
+    <T> Map<String, T> getAll(final Collection<String> keys);
+
+    /**
+     * Adds or replaces several entries in one batch, making room for all of them at
+     * once rather than entry by entry.
+     *
+     * @param values Data to store, by key.
+     * @param ttl    TTL for these records.
+     * @return True if every entry was stored
+     */
+    boolean putAll(final Map<String, ?> values, long ttl);
+
+    /**
+     * Retrieves an entry from the cache, loading and caching it on a miss. Concurrent
+     * misses for the same key share a single load, and a failed load is remembered
+     * briefly so that callers do not pile onto a failing data source.
+     *
+     * @param key    Cache key
+     * @param loader Loads the value from its original data source.
+     * @param ttl    TTL for the loaded record.
+     * @return The value, or null if it is not cached and the loader failed or found none
+     */
+    <T> T getOrLoad(final String key, final Loader<T> loader, long ttl);
+
     /**
      * Performs any potentially long-running actions needed to initialize the
      * cache; will be called from a worker thread.
@@ -54,11 +91,78 @@ public interface Cache {
      */
     void remove(final String key);
 
+    /**
+     * Removes several entries from the cache.
+     *
+     * @param keys Cache keys
+     */
+    void removeAll(final Collection<String> keys);
+
     /**
      * Empties the cache.
      */
     void clear();
 
+    /**
+     * Opens a stream over the data of an entry, so that large values can be read
+     * without being loaded into memory. Entries written through an {@link Editor}
+     * hold the raw bytes that were written.
+     *
+     * @param key Cache key
+     * @return A stream the caller must close, or null in the event of a cache miss
+     */
+    InputStream openInputStream(final String key);
+
+    /**
+     * Starts writing an entry as a stream of raw bytes. The entry only becomes
+     * visible, replacing any previous entry, when the editor is committed.
+     *
+     * @param key Cache key
+     * @param ttl TTL for this record.
+     * @return An editor, or null if the entry cannot be written
+     */
+    Editor edit(final String key, long ttl);
+
+    /**
+     * Returns a snapshot of the statistics of the cache since it was created.
+     */
+    CacheStats getStats();
+
+    /**
+     * Writes the data of a single entry.
+     */
+    interface Editor {
+
+        /**
+         * Returns the stream the data of the entry is written to. It must not be
+         * used after {@link #commit()} or {@link #abort()}.
+         */
+        OutputStream getOutputStream() throws IOException;
+
+        /**
+         * Atomically publishes the written data as the entry.
+         *
+         * @return True if the entry was published
+         */
+        boolean commit();
+
+        /**
+         * Discards the written data, leaving any previous entry in place.
+         */
+        void abort();
+    }
+
+    /**
+     * Loads the value of an entry from its original data source.
+     */
+    interface Loader<T> {
+
+        /**
+         * Returns the value for the given key, or null if there is none.
+         */
+        T load(final String key) throws Exception;
+    }
+
     /**
      * Data and metadata for an entry returned by the cache.
      */
@@ -106,11 +210,21 @@ public interface Cache {
          */
         public long softTtl;
 
+        /**
+         * Id of the {@link ValueCodec} the data is encoded with.
+         */
+        public int valueCodec = ParcelValueCodec.ID;
+
         /**
          * Immutable response headers as received from server; must be non-null.
          */
         public Map<String, String> responseHeaders = Collections.emptyMap();
 
+        /**
+         * Tags the entry can be invalidated by as a group; must be non-null.
+         */
+        public Set<String> tags = Collections.emptySet();
+
         public Entry() {
         }
 
@@ -121,6 +235,8 @@ public interface Cache {
             this.lastModified = in.readLong();
             this.ttl = in.readLong();
             this.softTtl = in.readLong();
+            this.valueCodec = in.readInt();
+            this.tags = DiskCache.tagSet(in.createStringArrayList());
         }
 
         /**
@@ -150,6 +266,8 @@ public interface Cache {
             dest.writeLong(lastModified);
             dest.writeLong(ttl);
             dest.writeLong(softTtl);
+            dest.writeInt(valueCodec);
+            dest.writeStringList(new ArrayList<String>(tags));
         }
     }
 
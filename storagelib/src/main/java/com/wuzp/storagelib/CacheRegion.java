@@ -0,0 +1,357 @@
+package com.wuzp.storagelib;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named region of a {@link DiskCache}, with its own quota, eviction policy and
+ * statistics. The entries of every region live in the directory, index, journal and
+ * thread pools of the hosting cache, under keys prefixed with the region name, so the
+ * regions share a single startup scan.
+ * <p>
+ * A region may grow past its quota while the cache as a whole has room, borrowing the
+ * capacity other regions leave idle. Once the cache is full, a region over its quota
+ * evicts its own entries to make room for its writes, and writes anywhere else evict
+ * from the regions over their quota before touching any region within its quota.
+ * Create regions with {@link DiskCache#region(String, long, EvictionPolicy)}.
+ */
+class CacheRegion implements Cache {
+
+    /**
+     * Separates the region name from the key within the region in the keys of the
+     * hosting cache, which rejects it in the keys written to it directly.
+     */
+    static final char SEPARATOR = '\u001f';
+
+    private final DiskCache mDisk;
+
+    private final String mName;
+
+    private final String mPrefix;
+
+    private final long mQuotaInBytes;
+
+    private final EvictionPolicy mPolicy;
+
+    /**
+     * Total size of the entries of the region in bytes.
+     */
+    private final AtomicLong mSize = new AtomicLong();
+
+    private final StatsRecorder mStats = new StatsRecorder();
+
+    private final LoadCoalescer mLoads = new LoadCoalescer();
+
+    CacheRegion(final DiskCache disk, final String name, final long quotaInBytes, final EvictionPolicy policy) {
+        this.mDisk = disk;
+        this.mName = name;
+        this.mPrefix = name + SEPARATOR;
+        this.mQuotaInBytes = quotaInBytes;
+        this.mPolicy = new BufferedAccessPolicy(policy);
+    }
+
+    /**
+     * Returns the region name a key of the hosting cache is prefixed with, or null if
+     * it has none.
+     */
+    static String regionNameOf(final String key) {
+        final int separator = key.indexOf(SEPARATOR);
+        return separator > 0 ? key.substring(0, separator) : null;
+    }
+
+    public String getName() {
+        return this.mName;
+    }
+
+    public long getQuotaInBytes() {
+        return this.mQuotaInBytes;
+    }
+
+    /**
+     * Returns the total size of the entries of the region in bytes.
+     */
+    public long getSize() {
+        return this.mSize.get();
+    }
+
+    /**
+     * Returns the number of bytes the region currently uses beyond its quota.
+     */
+    public long getBorrowedBytes() {
+        return Math.max(0, this.mSize.get() - this.mQuotaInBytes);
+    }
+
+    @Override
+    public boolean has(final String key) {
+        return this.mDisk.has(keyFor(key));
+    }
+
+    @Override
+    public <T> T get(final String key) {
+        final long start = System.nanoTime();
+        try {
+            final T value = this.mDisk.get(keyFor(key));
+            if (value == null) {
+                this.mStats.recordMiss();
+            } else {
+                this.mStats.recordHit();
+            }
+            return value;
+        } finally {
+            this.mStats.mGet.recordSince(start);
+        }
+    }
+
+    @Override
+    public boolean put(final String key, final Object value, final long ttl) {
+        final long start = System.nanoTime();
+        try {
+            final Entry entry = this.mDisk.encode(value, ttl);
+            if (entry == null || !this.mDisk.putEntry(keyFor(key), entry)) {
+                return false;
+            }
+
+            this.mStats.recordBytesWritten(entry.data.length);
+            return true;
+        } finally {
+            this.mStats.mPut.recordSince(start);
+        }
+    }
+
+    /**
+     * Puts the entry with the specified key into the region, tagged so that it can be
+     * invalidated along with the other entries of the region sharing a tag.
+     *
+     * @param tags The tags of the entry, or null for none.
+     */
+    public boolean put(final String key, final Object value, final long ttl, final Collection<String> tags) {
+        final long start = System.nanoTime();
+        try {
+            final Entry entry = this.mDisk.encode(value, ttl);
+            if (entry == null) {
+                return false;
+            }
+
+            entry.tags = DiskCache.tagSet(tags);
+            if (!this.mDisk.putEntry(keyFor(key), entry)) {
+                return false;
+            }
+
+            this.mStats.recordBytesWritten(entry.data.length);
+            return true;
+        } finally {
+            this.mStats.mPut.recordSince(start);
+        }
+    }
+
+    @Override
+    public <T> Map<String, T> getAll(final Collection<String> keys) {
+        final Map<String, T> values = new LinkedHashMap<String, T>();
+        for (final String key : keys) {
+            final T value = get(key);
+            if (value != null) {
+                values.put(key, value);
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public boolean putAll(final Map<String, ?> values, final long ttl) {
+        final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+        boolean stored = true;
+        for (final Map.Entry<String, ?> e : values.entrySet()) {
+            final Entry entry = this.mDisk.encode(e.getValue(), ttl);
+            if (entry == null) {
+                stored = false;
+            } else {
+                entries.put(keyFor(e.getKey()), entry);
+            }
+        }
+
+        final Set<String> failed = this.mDisk.putEntries(entries);
+        for (final Map.Entry<String, Entry> e : entries.entrySet()) {
+            if (!failed.contains(e.getKey())) {
+                this.mStats.recordBytesWritten(e.getValue().data.length);
+            }
+        }
+        return failed.isEmpty() && stored;
+    }
+
+    @Override
+    public <T> T getOrLoad(final String key, final Loader<T> loader, final long ttl) {
+        final T cached = get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        return this.mLoads.load(key, new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                // a load that completed after this caller missed may have stored it already
+                final T stored = CacheRegion.this.mDisk.readValue(keyFor(key));
+                if (stored != null) {
+                    return stored;
+                }
+
+                final T value = CacheRegion.this.mStats.load(key, loader);
+                if (value != null) {
+                    put(key, value, ttl);
+                }
+                return value;
+            }
+        });
+    }
+
+    /**
+     * Waits for the index of the hosting cache, loading it if nobody has started to;
+     * the cache is scanned once for all its regions.
+     */
+    @Override
+    public void initialize() {
+        this.mDisk.initialize();
+    }
+
+    @Override
+    public void invalidate(final String key, final boolean fullExpire) {
+        this.mDisk.invalidate(keyFor(key), fullExpire);
+    }
+
+    @Override
+    public void remove(final String key) {
+        this.mDisk.remove(keyFor(key));
+    }
+
+    @Override
+    public void removeAll(final Collection<String> keys) {
+        final List<String> prefixed = new ArrayList<String>(keys.size());
+        for (final String key : keys) {
+            prefixed.add(keyFor(key));
+        }
+        this.mDisk.removeAll(prefixed);
+    }
+
+    /**
+     * Removes every entry of the region whose key starts with the given prefix, see
+     * {@link DiskCache#invalidateByPrefix(String)}.
+     *
+     * @return The number of entries removed.
+     */
+    public int invalidateByPrefix(final String prefix) {
+        return this.mDisk.invalidateByPrefix(keyFor(prefix));
+    }
+
+    /**
+     * Removes every entry of the region tagged with the given tag, see
+     * {@link DiskCache#invalidateByTag(String)}.
+     *
+     * @return The number of entries removed.
+     */
+    public int invalidateByTag(final String tag) {
+        return this.mDisk.invalidateByTag(tag, this.mPrefix);
+    }
+
+    /**
+     * Removes every entry of the region, leaving the other regions alone. Files are
+     * deleted in the background, see {@link DiskCache#invalidateByPrefix(String)}.
+     */
+    @Override
+    public void clear() {
+        this.mDisk.invalidateByPrefix(this.mPrefix);
+        this.mLoads.clear();
+    }
+
+    @Override
+    public InputStream openInputStream(final String key) {
+        return this.mDisk.openInputStream(keyFor(key));
+    }
+
+    @Override
+    public Editor edit(final String key, final long ttl) {
+        return this.mDisk.openEditor(keyFor(key), ttl);
+    }
+
+    /**
+     * Returns the statistics of the region. Bytes read, initialization, pruning and
+     * decoding are only tracked by the hosting cache.
+     */
+    @Override
+    public CacheStats getStats() {
+        return this.mStats.snapshot();
+    }
+
+    /**
+     * Returns the key of the hosting cache for a key of this region.
+     */
+    String keyFor(final String key) {
+        return this.mPrefix.concat(key);
+    }
+
+    String prefix() {
+        return this.mPrefix;
+    }
+
+    /**
+     * Returns the keys of the hosting cache from the first to the last to evict from
+     * this region.
+     */
+    Iterator<String> evictionOrder() {
+        return this.mPolicy.evictionOrder();
+    }
+
+    /**
+     * Called by the hosting cache when an entry of the region is added or replaced.
+     *
+     * @param delta The change of the region size in bytes.
+     */
+    void onIndexed(final String key, final long size, final long delta) {
+        this.mSize.addAndGet(delta);
+        this.mPolicy.onPut(key, size);
+    }
+
+    void onAccess(final String key) {
+        this.mPolicy.onAccess(key);
+    }
+
+    /**
+     * Called by the hosting cache when an entry of the region leaves its index.
+     *
+     * @param evicted True if the entry was evicted from this region's eviction order.
+     */
+    void onRemoved(final String key, final long size, final boolean evicted) {
+        this.mSize.addAndGet(-size);
+        if (evicted) {
+            this.mPolicy.onEvict(key);
+        } else {
+            this.mPolicy.onRemove(key);
+        }
+    }
+
+    /**
+     * Records an entry of the region dropped to make room.
+     */
+    void recordEviction() {
+        this.mStats.recordEviction();
+    }
+
+    void recordExpiry() {
+        this.mStats.recordExpiry();
+    }
+
+    /**
+     * Forgets every entry, when the hosting cache is cleared.
+     */
+    void reset() {
+        this.mSize.set(0);
+        this.mPolicy.clear();
+        this.mLoads.clear();
+    }
+}
@@ -0,0 +1,296 @@
+package com.wuzp.storagelib;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Immutable snapshot of the statistics of a {@link Cache}: request counts, loads,
+ * entries dropped, bytes moved to and from storage and latency histograms of the main
+ * operations. Counts are cumulative since the cache was created; the difference of
+ * two snapshots, see {@link #minus(CacheStats)}, covers the time between them.
+ */
+public final class CacheStats {
+
+    private final long mHitCount;
+
+    private final long mMissCount;
+
+    private final long mLoadSuccessCount;
+
+    private final long mLoadFailureCount;
+
+    private final long mEvictionCount;
+
+    private final long mExpiryCount;
+
+    private final long mBytesRead;
+
+    private final long mBytesWritten;
+
+    private final Latency mGetLatency;
+
+    private final Latency mPutLatency;
+
+    private final Latency mLoadLatency;
+
+    private final Latency mInitializeLatency;
+
+    private final Latency mPruneLatency;
+
+    private final Latency mDecodeLatency;
+
+    CacheStats(final long hitCount, final long missCount, final long loadSuccessCount, final long loadFailureCount,
+               final long evictionCount, final long expiryCount, final long bytesRead, final long bytesWritten,
+               final Latency getLatency, final Latency putLatency, final Latency loadLatency,
+               final Latency initializeLatency, final Latency pruneLatency, final Latency decodeLatency) {
+        this.mHitCount = hitCount;
+        this.mMissCount = missCount;
+        this.mLoadSuccessCount = loadSuccessCount;
+        this.mLoadFailureCount = loadFailureCount;
+        this.mEvictionCount = evictionCount;
+        this.mExpiryCount = expiryCount;
+        this.mBytesRead = bytesRead;
+        this.mBytesWritten = bytesWritten;
+        this.mGetLatency = getLatency;
+        this.mPutLatency = putLatency;
+        this.mLoadLatency = loadLatency;
+        this.mInitializeLatency = initializeLatency;
+        this.mPruneLatency = pruneLatency;
+        this.mDecodeLatency = decodeLatency;
+    }
+
+    /**
+     * Returns the number of reads that found a live entry.
+     */
+    public long getHitCount() {
+        return this.mHitCount;
+    }
+
+    /**
+     * Returns the number of reads that found no entry or an expired one.
+     */
+    public long getMissCount() {
+        return this.mMissCount;
+    }
+
+    /**
+     * Returns the fraction of reads that were hits, or 1 if there was no read.
+     */
+    public double getHitRate() {
+        final long requests = this.mHitCount + this.mMissCount;
+        return requests == 0 ? 1 : (double) this.mHitCount / requests;
+    }
+
+    /**
+     * Returns the number of loader calls that returned, with or without a value.
+     */
+    public long getLoadSuccessCount() {
+        return this.mLoadSuccessCount;
+    }
+
+    /**
+     * Returns the number of loader calls that threw.
+     */
+    public long getLoadFailureCount() {
+        return this.mLoadFailureCount;
+    }
+
+    /**
+     * Returns the number of live entries evicted to make room.
+     */
+    public long getEvictionCount() {
+        return this.mEvictionCount;
+    }
+
+    /**
+     * Returns the number of expired entries removed.
+     */
+    public long getExpiryCount() {
+        return this.mExpiryCount;
+    }
+
+    /**
+     * Returns the number of bytes of entries read from storage.
+     */
+    public long getBytesRead() {
+        return this.mBytesRead;
+    }
+
+    /**
+     * Returns the number of bytes of entries written to storage, headers included.
+     */
+    public long getBytesWritten() {
+        return this.mBytesWritten;
+    }
+
+    public Latency getGetLatency() {
+        return this.mGetLatency;
+    }
+
+    public Latency getPutLatency() {
+        return this.mPutLatency;
+    }
+
+    /**
+     * Returns the latency of the loader calls, failed ones included.
+     */
+    public Latency getLoadLatency() {
+        return this.mLoadLatency;
+    }
+
+    public Latency getInitializeLatency() {
+        return this.mInitializeLatency;
+    }
+
+    /**
+     * Returns the latency of the passes that made room for a write.
+     */
+    public Latency getPruneLatency() {
+        return this.mPruneLatency;
+    }
+
+    /**
+     * Returns the latency of decoding stored data into values. Values served from
+     * the decoded value cache are not decoded again.
+     */
+    public Latency getDecodeLatency() {
+        return this.mDecodeLatency;
+    }
+
+    /**
+     * Returns the statistics accumulated since the given, earlier snapshot of the same
+     * cache.
+     */
+    public CacheStats minus(final CacheStats other) {
+        return new CacheStats(
+            this.mHitCount - other.mHitCount,
+            this.mMissCount - other.mMissCount,
+            this.mLoadSuccessCount - other.mLoadSuccessCount,
+            this.mLoadFailureCount - other.mLoadFailureCount,
+            this.mEvictionCount - other.mEvictionCount,
+            this.mExpiryCount - other.mExpiryCount,
+            this.mBytesRead - other.mBytesRead,
+            this.mBytesWritten - other.mBytesWritten,
+            this.mGetLatency.minus(other.mGetLatency),
+            this.mPutLatency.minus(other.mPutLatency),
+            this.mLoadLatency.minus(other.mLoadLatency),
+            this.mInitializeLatency.minus(other.mInitializeLatency),
+            this.mPruneLatency.minus(other.mPruneLatency),
+            this.mDecodeLatency.minus(other.mDecodeLatency));
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "CacheStats{hits=%d, misses=%d, loads=%d, loadFailures=%d, evictions=%d, "
+                + "expiries=%d, bytesRead=%d, bytesWritten=%d, get=%s, put=%s, load=%s, initialize=%s, prune=%s, decode=%s}",
+            this.mHitCount, this.mMissCount, this.mLoadSuccessCount, this.mLoadFailureCount, this.mEvictionCount,
+            this.mExpiryCount, this.mBytesRead, this.mBytesWritten, this.mGetLatency, this.mPutLatency,
+            this.mLoadLatency, this.mInitializeLatency, this.mPruneLatency, this.mDecodeLatency);
+    }
+
+    /**
+     * Receives the statistics of a cache periodically, see {@link CacheStatsReporter}.
+     */
+    public interface Reporter {
+
+        /**
+         * Called on a background thread with the latest statistics of a cache.
+         *
+         * @param name     The name the cache is reported under.
+         * @param total    The statistics since the cache was created.
+         * @param interval The statistics since the previous report.
+         */
+        void report(final String name, final CacheStats total, final CacheStats interval);
+    }
+
+    /**
+     * Histogram of the durations of an operation, in power-of-two buckets of
+     * nanoseconds: bucket i counts the durations in [2^i, 2^(i+1)), bucket 0 also
+     * counts zero durations.
+     */
+    public static final class Latency {
+
+        private final long[] mBuckets;
+
+        private final long mCount;
+
+        private final long mTotalNanos;
+
+        private final long mMaxNanos;
+
+        Latency(final long[] buckets, final long totalNanos, final long maxNanos) {
+            long count = 0;
+            for (final long n : buckets) {
+                count += n;
+            }
+            this.mBuckets = buckets;
+            this.mCount = count;
+            this.mTotalNanos = totalNanos;
+            this.mMaxNanos = maxNanos;
+        }
+
+        public long getCount() {
+            return this.mCount;
+        }
+
+        public long getTotalNanos() {
+            return this.mTotalNanos;
+        }
+
+        public long getMeanNanos() {
+            return this.mCount == 0 ? 0 : this.mTotalNanos / this.mCount;
+        }
+
+        /**
+         * Returns the longest duration recorded. In an interval snapshot this is the
+         * maximum since the cache was created.
+         */
+        public long getMaxNanos() {
+            return this.mMaxNanos;
+        }
+
+        /**
+         * Returns an upper bound of the given percentile of the durations, precise to
+         * a factor of two.
+         *
+         * @param percentile The percentile, between 0 and 100.
+         */
+        public long getPercentileNanos(final double percentile) {
+            if (this.mCount == 0) {
+                return 0;
+            }
+
+            final long rank = (long) Math.ceil(this.mCount * Math.min(100, Math.max(0, percentile)) / 100);
+            long seen = 0;
+            for (int i = 0; i < this.mBuckets.length; i++) {
+                seen += this.mBuckets[i];
+                if (seen >= rank && seen > 0) {
+                    final long upper = i >= 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+                    return Math.min(upper, this.mMaxNanos);
+                }
+            }
+            return this.mMaxNanos;
+        }
+
+        /**
+         * Returns a copy of the bucket counts.
+         */
+        public long[] getBuckets() {
+            return Arrays.copyOf(this.mBuckets, this.mBuckets.length);
+        }
+
+        Latency minus(final Latency other) {
+            final long[] buckets = new long[this.mBuckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = this.mBuckets[i] - other.mBuckets[i];
+            }
+            return new Latency(buckets, this.mTotalNanos - other.mTotalNanos, this.mMaxNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "{count=%d, meanNs=%d, p50Ns=%d, p99Ns=%d, maxNs=%d}", this.mCount,
+                getMeanNanos(), getPercentileNanos(50), getPercentileNanos(99), this.mMaxNanos);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.wuzp.storagelib;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Periodically hands the statistics of a cache to a {@link CacheStats.Reporter}, for
+ * instance to ship them to a telemetry backend. Each report carries the totals and
+ * the difference since the previous report.
+ */
+public class CacheStatsReporter {
+
+    /**
+     * Log tag
+     */
+    private static final String TAG = "CacheStatsReporter";
+
+    /**
+     * Runs the reports of all caches.
+     */
+    private static final ScheduledThreadPoolExecutor REPORTER_POOL = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        private final AtomicInteger mCounter = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(@NonNull final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "CacheStats#" + mCounter.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final String mName;
+
+    private final Cache mCache;
+
+    private final CacheStats.Reporter mReporter;
+
+    /**
+     * The statistics of the previous report.
+     */
+    private CacheStats mLast;
+
+    /**
+     * The scheduled report task, or null when not started.
+     */
+    private ScheduledFuture<?> mTask;
+
+    /**
+     * @param name     The name the cache is reported under.
+     * @param cache    The cache to report.
+     * @param reporter Receives the reports.
+     */
+    public CacheStatsReporter(final String name, final Cache cache, final CacheStats.Reporter reporter) {
+        this.mName = name;
+        this.mCache = cache;
+        this.mReporter = reporter;
+    }
+
+    /**
+     * Starts reporting every intervalMillis, replacing any schedule already running.
+     *
+     * @param intervalMillis The delay between two reports in milliseconds.
+     */
+    public synchronized void start(final long intervalMillis) {
+        stop();
+        this.mTask = REPORTER_POOL.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                report();
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops reporting. A report in progress completes.
+     */
+    public synchronized void stop() {
+        if (this.mTask != null) {
+            this.mTask.cancel(false);
+            this.mTask = null;
+        }
+    }
+
+    /**
+     * Reports the statistics now, on the calling thread.
+     */
+    public synchronized void report() {
+        final CacheStats stats = this.mCache.getStats();
+        final CacheStats interval = this.mLast == null ? stats : stats.minus(this.mLast);
+        this.mLast = stats;
+
+        try {
+            this.mReporter.report(this.mName, stats, interval);
+        } catch (final RuntimeException e) {
+            // a failing reporter must not cancel the schedule
+            Log.d(TAG, String.format("Failed to report stats of %s: %s", this.mName, e));
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.wuzp.storagelib;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Compresses the data of cache entries. The id of the codec is stored in the header
+ * of every entry it encodes, so that the entry can be decoded later by the codec
+ * registered under that id, see {@link DiskCache#registerCompressionCodec}.
+ */
+interface CompressionCodec {
+
+    /**
+     * Identifier stored in the header of entries encoded by this codec, between 1 and
+     * 15. {@link DeflateCodec#ID} is taken by the built-in codec.
+     */
+    int id();
+
+    /**
+     * Returns the compressed form of the data.
+     */
+    byte[] compress(final byte[] data) throws IOException;
+
+    /**
+     * Wraps a stream of compressed data into a stream of the original data.
+     */
+    InputStream decompress(final InputStream in) throws IOException;
+}
@@ -0,0 +1,126 @@
+package com.wuzp.storagelib;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Decoded values of recently read entries, held through soft or weak references so
+ * that the garbage collector reclaims them under memory pressure. Each value is
+ * stored along with the generation of the entry it was decoded from, any object
+ * that is replaced whenever the entry is written, and is only returned for that same
+ * generation.
+ * <p>
+ * Values are shared between callers and must not be mutated.
+ */
+class DecodedValueCache {
+
+    private final ConcurrentMap<String, ValueReference> mValues = new ConcurrentHashMap<String, ValueReference>();
+
+    /**
+     * Receives the references cleared by the garbage collector, whose keys are then
+     * dropped from the map.
+     */
+    private final ReferenceQueue<Object> mCleared = new ReferenceQueue<Object>();
+
+    private final boolean mSoft;
+
+    /**
+     * @param soft True to hold values through soft references, which survive until
+     *             memory runs low; false for weak references, which do not survive
+     *             the next collection once no caller holds the value.
+     */
+    DecodedValueCache(final boolean soft) {
+        this.mSoft = soft;
+    }
+
+    /**
+     * Returns the value decoded from the given generation of the entry, or null.
+     */
+    <T> T get(final String key, final Object generation) {
+        final ValueReference ref = this.mValues.get(key);
+        return ref != null && ref.generation() == generation ? (T) ((Reference<?>) ref).get() : null;
+    }
+
+    void put(final String key, final Object generation, final Object value) {
+        purge();
+        this.mValues.put(key, this.mSoft
+            ? new SoftValueReference(key, generation, value, this.mCleared)
+            : new WeakValueReference(key, generation, value, this.mCleared));
+    }
+
+    void remove(final String key) {
+        this.mValues.remove(key);
+    }
+
+    void clear() {
+        this.mValues.clear();
+        purge();
+    }
+
+    private void purge() {
+        for (Reference<?> ref = this.mCleared.poll(); ref != null; ref = this.mCleared.poll()) {
+            final ValueReference value = (ValueReference) ref;
+            this.mValues.remove(value.key(), value);
+        }
+    }
+
+    /**
+     * A reference to a decoded value that knows the key and generation it belongs to.
+     */
+    private interface ValueReference {
+
+        String key();
+
+        Object generation();
+    }
+
+    private static final class SoftValueReference extends SoftReference<Object> implements ValueReference {
+
+        private final String mKey;
+
+        private final Object mGeneration;
+
+        SoftValueReference(final String key, final Object generation, final Object value, final ReferenceQueue<Object> queue) {
+            super(value, queue);
+            this.mKey = key;
+            this.mGeneration = generation;
+        }
+
+        @Override
+        public String key() {
+            return this.mKey;
+        }
+
+        @Override
+        public Object generation() {
+            return this.mGeneration;
+        }
+    }
+
+    private static final class WeakValueReference extends WeakReference<Object> implements ValueReference {
+
+        private final String mKey;
+
+        private final Object mGeneration;
+
+        WeakValueReference(final String key, final Object generation, final Object value, final ReferenceQueue<Object> queue) {
+            super(value, queue);
+            this.mKey = key;
+            this.mGeneration = generation;
+        }
+
+        @Override
+        public String key() {
+            return this.mKey;
+        }
+
+        @Override
+        public Object generation() {
+            return this.mGeneration;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.wuzp.storagelib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression codec backed by {@link Deflater}.
+ */
+class DeflateCodec implements CompressionCodec {
+
+    static final int ID = 1;
+
+    private final int mLevel;
+
+    DeflateCodec(final int level) {
+        this.mLevel = level;
+    }
+
+    DeflateCodec() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public byte[] compress(final byte[] data) throws IOException {
+        final Deflater deflater = new Deflater(this.mLevel);
+
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+            final byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                final int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public InputStream decompress(final InputStream in) throws IOException {
+        return new InflaterInputStream(in);
+    }
+}
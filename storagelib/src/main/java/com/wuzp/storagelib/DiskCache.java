@@ -1,28 +1,92 @@
 package com.wuzp.storagelib;
 
-import android.os.Parcel;
+import android.support.annotation.NonNull;
 import android.util.Log;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Cache implementation that caches files directly onto the hard disk in the specified
  * directory. The default disk usage size is 5MB, but is configurable.
+ * <p>
+ * Entries are stored under a 128-bit hash of their key, fanned out over two levels of
+ * subdirectories, and the key stored in each file is checked on read. Files left in
+ * the flat layout of older versions are moved into place while the index loads.
+ * <p>
+ * The key index is a concurrent map and file I/O is guarded by striped read/write
+ * locks, so readers never wait on a global monitor and writers to different keys
+ * proceed in parallel. Which entries are evicted is up to a pluggable
+ * {@link EvictionPolicy}, least recently used by default, but expired entries are
+ * always reclaimed before any live entry is evicted. Puts can optionally be
+ * written behind by a background writer, see {@link #enableWriteBehind(int)}.
+ * <p>
+ * In multi-process mode several processes may open caches over the same directory.
+ * They share the entry sizes, versions and total size through a {@link SharedIndex},
+ * so the size budget holds across processes and an entry put by one process is
+ * found by the others. The index journal is disabled in this mode, so each process
+ * scans the directory when it initializes.
+ * <p>
+ * The cache can be divided into named {@link CacheRegion}s with quotas of their own,
+ * see {@link #region(String, long, EvictionPolicy)}. Groups of entries sharing a key
+ * prefix or a tag are invalidated through secondary indexes, see
+ * {@link #invalidateByPrefix(String)} and {@link #invalidateByTag(String)}.
  *
  */
 class DiskCache implements Cache {
@@ -35,20 +99,211 @@ class DiskCache implements Cache {
      * Log tag
      */
     private static final String TAG = "DiskCache";
+    /**
+     * Loads the index of caches initialized asynchronously.
+     */
+    private static final ThreadPoolExecutor INITIALIZATION_POOL = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+        new LinkedBlockingDeque<Runnable>(), daemonThreadFactory("DiskCache#"));
+    /**
+     * Runs the background reapers removing expired entries.
+     */
+    private static final ScheduledThreadPoolExecutor REAPER_POOL = new ScheduledThreadPoolExecutor(1,
+        daemonThreadFactory("DiskCacheReaper#"));
+    /**
+     * Flushes the staged puts of caches in write-behind mode. Like every pool of the
+     * cache it runs daemon threads, so call {@link #flush()} before a JVM exits if
+     * staged puts must survive it.
+     */
+    private static final ThreadPoolExecutor WRITE_BEHIND_POOL = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+        new LinkedBlockingDeque<Runnable>(), daemonThreadFactory("DiskCacheWriter#"));
+    /**
+     * Reloads soft-expired entries in the background.
+     */
+    private static final ThreadPoolExecutor REFRESH_POOL = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS,
+        new LinkedBlockingDeque<Runnable>(), daemonThreadFactory("DiskCacheRefresh#"));
+    /**
+     * Maximum number of staged puts written per batch.
+     */
+    private static final int WRITE_BATCH_SIZE = 32;
+    /**
+     * Maximum number of expired entries a single reaper pass removes.
+     */
+    private static final int REAP_BATCH_SIZE = 64;
+    /**
+     * Maximum number of files of invalidated entries deleted per batch.
+     */
+    private static final int DELETE_BATCH_SIZE = 64;
     /**
      * High water mark percentage for the cache
      */
     private static final float HYSTERESIS_FACTOR = 0.9f;
 
+    /**
+     * Bits of the header flags holding the id of the codec the data is compressed
+     * with, 0 for raw data.
+     */
+    static final int FLAG_CODEC_MASK = 0x0f;
+
+    /**
+     * Bits of the header flags holding the id of the value codec the data is encoded
+     * with.
+     */
+    static final int FLAG_VALUE_CODEC_MASK = 0xf0;
+
+    static final int FLAG_VALUE_CODEC_SHIFT = 4;
+
+    /**
+     * Entries smaller than this are never compressed.
+     */
+    private static final int MIN_COMPRESS_SIZE = 256;
+
+    /**
+     * Size of the leading sample compressed to decide whether an entry is worth
+     * compressing.
+     */
+    private static final int COMPRESS_SAMPLE_SIZE = 4 * 1024;
+
+    /**
+     * Compressed data larger than this fraction of the original is stored raw.
+     */
+    private static final float MAX_SAMPLE_RATIO = 0.9f;
+
+
+    /**
+     * Suffix of the temporary files entries are written to before being published.
+     */
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    /**
+     * Number of levels of subdirectories the cache files are spread over.
+     */
+    private static final int FAN_OUT_LEVELS = 2;
+
+    /**
+     * Number of hex digits of the filename naming the subdirectory at each level.
+     */
+    private static final int FAN_OUT_DIGITS = 2;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Per-thread digest hashing keys into filenames.
+     */
+    private static final ThreadLocal<MessageDigest> KEY_DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (final NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    /**
+     * Age after which a temporary file is considered abandoned in multi-process mode.
+     */
+    private static final long STALE_TEMP_FILE_MILLIS = 60 * 60 * 1000;
+
+    /**
+     * Coarsest modification time granularity of the file systems the cache runs on;
+     * the orphan sweep only touches files older than the load by at least this much.
+     */
+    private static final long MTIME_GRANULARITY_MILLIS = 2000;
+
     /**
      * Magic number for current version of cache file format.
      */
-    private static final int CACHE_MAGIC = 0x20160306;
+    private static final int CACHE_MAGIC = 0x20160307;
+
+    /**
+     * Magic number for version 1 of the cache file format, which is still read.
+     */
+    private static final int CACHE_MAGIC_V1 = 0x20160306;
+
+    /**
+     * Length of the fixed-size fields following the magic number in a version 2
+     * header: flags, server date, last modified date, TTL and soft TTL.
+     */
+    static final int HEADER_FIXED_LENGTH = 1 + 4 * 8;
+
+    /**
+     * Offset of the server date in a version 2 file, after the magic number and the
+     * flags; the last modified date, TTL and soft TTL follow it.
+     */
+    private static final int HEADER_TIMES_OFFSET = 4 + 1;
+
+    /**
+     * Passed to {@link #rewriteTimes} for a time that is left unchanged.
+     */
+    private static final long KEEP_TIME = -1;
+
+    /**
+     * Upper bound on the variable-size part of a header, to reject garbage lengths.
+     */
+    private static final int MAX_HEADER_LENGTH = 1024 * 1024;
+
+    /**
+     * Per-thread buffer headers are encoded into and decoded from.
+     */
+    private static final ThreadLocal<ByteBuffer> HEADER_BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    };
+
+    /**
+     * Number of lock stripes guarding the cache files; must be a power of two.
+     */
+    private static final int LOCK_STRIPES = 32;
+
+    /**
+     * Orders cache headers by expiry time, soonest first.
+     */
+    private static final Comparator<CacheHeader> EXPIRY_ORDER = new Comparator<CacheHeader>() {
+        @Override
+        public int compare(final CacheHeader lhs, final CacheHeader rhs) {
+            if (lhs.mTtl != rhs.mTtl) {
+                return lhs.mTtl < rhs.mTtl ? -1 : 1;
+            }
+            return lhs.mKey.compareTo(rhs.mKey);
+        }
+    };
 
     /**
      * Map of the Key, CacheHeader pairs
      */
-    private final Map<String, CacheHeader> mEntries = new LinkedHashMap<String, CacheHeader>(16, .75f, true);
+    private final ConcurrentMap<String, CacheHeader> mEntries = new ConcurrentHashMap<String, CacheHeader>(16, .75f, LOCK_STRIPES);
+
+    /**
+     * Striped locks serializing file I/O per key; readers of a key share its stripe.
+     */
+    private final ReentrantReadWriteLock[] mLocks = new ReentrantReadWriteLock[LOCK_STRIPES];
+
+    /**
+     * Serializes pruning, so that concurrent writers do not evict the same victims.
+     */
+    private final Object mPruneLock = new Object();
+
+    /**
+     * Decides which entries are evicted when the cache is full. Reads reach it through
+     * a buffer, so they do not contend on the policy.
+     */
+    private final EvictionPolicy mPolicy;
+
+    /**
+     * The indexed headers ordered by expiry time, so expired entries are found
+     * without walking the whole index.
+     */
+    private final ConcurrentSkipListSet<CacheHeader> mExpiryIndex = new ConcurrentSkipListSet<CacheHeader>(EXPIRY_ORDER);
+
+    /**
+     * The scheduled reaper task, or null when no reaper is running.
+     */
+    private ScheduledFuture<?> mReaper;
 
     /**
      * The root directory to use for the cache.
@@ -61,17 +316,194 @@ class DiskCache implements Cache {
     /**
      * Total amount of space currently used by the cache in bytes.
      */
-    private long mTotalSize = 0;
+    private final AtomicLong mTotalSize = new AtomicLong();
+
+    /**
+     * Journal of the index, replayed at startup instead of scanning every file.
+     */
+    private final IndexJournal mJournal;
+
+    /**
+     * Index shared with the other processes using the directory, or null when the
+     * cache is used by a single process.
+     */
+    private final SharedIndex mShared;
+
+    /**
+     * Incremented by {@link #clear()}, so that an index load in progress stops adding
+     * entries that no longer exist.
+     */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+
+    /**
+     * Keys removed while the index is loading, which the loader must not add back.
+     */
+    private final Set<String> mRemovedWhileLoading = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final Object mInitializationLock = new Object();
+
+    private FutureTask<Void> mInitialization;
+
+    /**
+     * True once the index is completely loaded; until then lookups of keys missing
+     * from the index probe the file system.
+     */
+    private volatile boolean mReady = false;
+
+    private volatile long mTimeToReadyMillis = -1;
+
+    /**
+     * Codec new entries are compressed with, or null to store them raw.
+     */
+    private volatile CompressionCodec mCodec;
+
+    private final AtomicLong mUncompressedBytes = new AtomicLong();
+
+    private final AtomicLong mCompressedBytes = new AtomicLong();
+
+    private final AtomicLong mCodecNanos = new AtomicLong();
+
+    /**
+     * Compression codecs by id, decompressing entries; entries written by an earlier
+     * codec stay readable after {@link #setCompressionCodec} switches to another.
+     */
+    private final AtomicReferenceArray<CompressionCodec> mCompressionCodecs = new AtomicReferenceArray<CompressionCodec>(FLAG_CODEC_MASK + 1);
+
+    /**
+     * Value codecs by id, decoding entries.
+     */
+    private final AtomicReferenceArray<ValueCodec> mValueCodecs = new AtomicReferenceArray<ValueCodec>((FLAG_VALUE_CODEC_MASK >>> FLAG_VALUE_CODEC_SHIFT) + 1);
+
+    /**
+     * Value codecs in the order they are offered a value to encode.
+     */
+    private final List<ValueCodec> mValueEncoders = new CopyOnWriteArrayList<ValueCodec>();
+
+    /**
+     * Puts accepted in write-behind mode that are not written yet, served to readers
+     * until they are. Repeated puts of a key replace its staged entry.
+     */
+    private final ConcurrentMap<String, Entry> mStaged = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Keys of the staged puts in the order they were first staged.
+     */
+    private final BlockingQueue<String> mWriteQueue = new LinkedBlockingQueue<String>();
+
+    private final AtomicBoolean mWriterScheduled = new AtomicBoolean();
+
+    /**
+     * One permit per key that may be staged, or null when puts are written through.
+     */
+    private volatile Semaphore mWritePermits;
+
+    /**
+     * Held shared while a put is staged and exclusively while write-behind is switched
+     * on or off, so that no entry is staged under a semaphore being replaced.
+     */
+    private final ReentrantReadWriteLock mWriteMode = new ReentrantReadWriteLock();
+
+    /**
+     * Keys with a background refresh in flight.
+     */
+    private final Set<String> mRefreshing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final LoadCoalescer mLoads = new LoadCoalescer();
+
+    private final StatsRecorder mStats = new StatsRecorder();
+
+    /**
+     * Values recently decoded by {@link #get}, or null when decoded values are not
+     * kept.
+     */
+    private volatile DecodedValueCache mDecoded;
+
+    /**
+     * Decides which puts are stored, or null to store every put that fits the cache.
+     */
+    private volatile AdmissionFilter mAdmission;
+
+    /**
+     * Regions of the cache by name.
+     */
+    private final ConcurrentMap<String, CacheRegion> mRegions = new ConcurrentHashMap<String, CacheRegion>();
+
+    /**
+     * The indexed keys in order, so the keys with a prefix are found without walking
+     * the whole index.
+     */
+    private final ConcurrentSkipListSet<String> mKeys = new ConcurrentSkipListSet<String>();
+
+    /**
+     * The indexed keys by tag.
+     */
+    private final ConcurrentMap<String, Set<String>> mTagIndex = new ConcurrentHashMap<String, Set<String>>();
+
+    /**
+     * Keys of invalidated entries whose files are left to delete.
+     */
+    private final BlockingQueue<String> mDeleteQueue = new LinkedBlockingQueue<String>();
+
+    private final AtomicBoolean mDeleterScheduled = new AtomicBoolean();
+
+    private final Runnable mWriter = new Runnable() {
+        @Override
+        public void run() {
+            drainWriteQueue();
+        }
+    };
+
+    private final Runnable mDeleter = new Runnable() {
+        @Override
+        public void run() {
+            drainDeleteQueue();
+        }
+    };
 
     /**
      * Constructs an instance of the DiskCache at the specified directory.
      *
      * @param rootDirectory       The root directory of the cache.
      * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     * @param policy              The policy choosing the entries to evict.
+     * @param multiProcess        True if other processes use the same directory.
      */
-    DiskCache(final File rootDirectory, final long maxCacheSizeInBytes) {
+    DiskCache(final File rootDirectory, final long maxCacheSizeInBytes, final EvictionPolicy policy, final boolean multiProcess) {
         this.mRootDirectory = rootDirectory;
         this.mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        this.mPolicy = new BufferedAccessPolicy(policy);
+        this.mJournal = new IndexJournal(rootDirectory, !multiProcess);
+        this.mShared = multiProcess ? SharedIndex.forDirectory(rootDirectory) : null;
+        registerValueCodec(new ParcelValueCodec());
+        registerValueCodec(new StringValueCodec());
+        registerValueCodec(new BytesValueCodec());
+        registerCompressionCodec(new DeflateCodec());
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            this.mLocks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Constructs an instance of the DiskCache at the specified directory, used by
+     * this process only.
+     *
+     * @param rootDirectory       The root directory of the cache.
+     * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     * @param policy              The policy choosing the entries to evict.
+     */
+    DiskCache(final File rootDirectory, final long maxCacheSizeInBytes, final EvictionPolicy policy) {
+        this(rootDirectory, maxCacheSizeInBytes, policy, false);
+    }
+
+    /**
+     * Constructs an instance of the DiskCache at the specified directory that
+     * evicts the least recently used entries first.
+     *
+     * @param rootDirectory       The root directory of the cache.
+     * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     */
+    DiskCache(final File rootDirectory, final long maxCacheSizeInBytes) {
+        this(rootDirectory, maxCacheSizeInBytes, new LruPolicy());
     }
 
     /**
@@ -84,6 +516,23 @@ class DiskCache implements Cache {
         this(rootDirectory, DEFAULT_DISK_USAGE_BYTES);
     }
 
+    /**
+     * Returns a factory of numbered daemon threads, so that the pools of the cache are
+     * easy to tell apart and never keep the process alive.
+     */
+    private static ThreadFactory daemonThreadFactory(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCounter = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(@NonNull final Runnable runnable) {
+                final Thread thread = new Thread(runnable, prefix + mCounter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
     /**
      * Reads the contents of an InputStream into a byte[].
      */
@@ -168,6 +617,102 @@ class DiskCache implements Cache {
         return new String(b, "UTF-8");
     }
 
+    /**
+     * Returns this thread's header buffer, cleared and limited to the given capacity.
+     */
+    static ByteBuffer headerBuffer(final int capacity) {
+        ByteBuffer buffer = HEADER_BUFFER.get();
+        if (buffer.capacity() < capacity) {
+            buffer = ByteBuffer.allocate(Math.max(capacity, buffer.capacity() * 2)).order(ByteOrder.LITTLE_ENDIAN);
+            HEADER_BUFFER.set(buffer);
+        }
+
+        buffer.clear();
+        buffer.limit(capacity);
+        return buffer;
+    }
+
+    /**
+     * Reads exactly 'length' bytes into the buffer and flips it for reading.
+     */
+    static void readFully(final InputStream is, final ByteBuffer buffer, final int length) throws IOException {
+        final byte[] bytes = buffer.array();
+        int pos = 0;
+        int count;
+
+        while (pos < length && ((count = is.read(bytes, pos, length - pos)) != -1)) {
+            pos += count;
+        }
+
+        if (pos != length) {
+            throw new EOFException("Expected " + length + " bytes, read " + pos + " bytes");
+        }
+
+        buffer.position(0);
+        buffer.limit(length);
+    }
+
+    static int varintSize(int n) {
+        int size = 1;
+        while ((n & ~0x7f) != 0) {
+            n >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    static void putVarint(final ByteBuffer buffer, int n) {
+        while ((n & ~0x7f) != 0) {
+            buffer.put((byte) ((n & 0x7f) | 0x80));
+            n >>>= 7;
+        }
+        buffer.put((byte) n);
+    }
+
+    static int getVarint(final ByteBuffer buffer) throws IOException {
+        int n = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            if (!buffer.hasRemaining()) {
+                throw new EOFException();
+            }
+
+            final int b = buffer.get();
+            n |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return n;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static int readVarint(final InputStream is) throws IOException {
+        int n = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final int b = read(is);
+            n |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return n;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    static void putBytes(final ByteBuffer buffer, final byte[] bytes) {
+        putVarint(buffer, bytes.length);
+        buffer.put(bytes);
+    }
+
+    static String getString(final ByteBuffer buffer) throws IOException {
+        final int length = getVarint(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new EOFException("Bad string length " + length);
+        }
+
+        final String s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, "UTF-8");
+        buffer.position(buffer.position() + length);
+        return s;
+    }
+
     static void writeStringStringMap(final Map<String, String> map, final OutputStream os) throws IOException {
         if (map != null) {
             writeInt(os, map.size());
@@ -194,296 +739,2411 @@ class DiskCache implements Cache {
     }
 
     /**
-     * Clears the cache. Deletes all cached files from disk.
+     * Encodes the value into a cache entry that expires after the given TTL, with the
+     * most recently registered value codec that accepts it.
+     *
+     * @return The entry, or null if the value could not be encoded.
      */
-    @Override
-    public synchronized void clear() {
-        final File[] files = this.mRootDirectory.listFiles();
-        if (files != null) {
-            for (final File file : files) {
-                file.delete();
+    Entry encode(final Object value, final long ttl, final long softTtl) {
+        for (final ValueCodec codec : this.mValueEncoders) {
+            if (!codec.canEncode(value)) {
+                continue;
+            }
+
+            final Entry entry = new Entry();
+            try {
+                entry.data = codec.encode(value);
+            } catch (final IOException e) {
+                Log.d(TAG, String.format("Failed to encode %s with codec %d: %s", value.getClass().getName(), codec.id(), e));
+                return null;
             }
+            entry.valueCodec = codec.id();
+            entry.ttl = expiryFor(ttl);
+            entry.softTtl = expiryFor(Math.min(softTtl, ttl));
+            return entry;
         }
 
-        this.mEntries.clear();
-        this.mTotalSize = 0;
-        Log.d(TAG, "Cache cleared.");
+        return null;
     }
 
-    @Override
-    public boolean has(final String key) {
-        return this.mEntries.containsKey(key);
+    Entry encode(final Object value, final long ttl) {
+        return encode(value, ttl, ttl);
     }
 
-    @Override
-    public synchronized <T> T get(final String key) {
-        final Entry entry = getEntry(key);
-        if (null == entry || entry.data == null || entry.isExpired()) {
+    /**
+     * Converts a TTL into the absolute time at which an entry expires.
+     */
+    static long expiryFor(final long ttl) {
+        if (ttl >= (Long.MAX_VALUE >> 1)) {
+            return Long.MAX_VALUE;
+        }
+
+        return BigDecimal.valueOf(ttl).add(BigDecimal.valueOf(System.currentTimeMillis())).longValue();
+    }
+
+    /**
+     * Decodes the value held by a cache entry with the codec it was encoded with.
+     *
+     * @return The value, or null if the entry could not be decoded.
+     */
+    <T> T decode(final Entry entry) {
+        final ValueCodec codec = this.mValueCodecs.get(entry.valueCodec);
+        if (codec == null) {
+            Log.d(TAG, String.format("No value codec with id %d", entry.valueCodec));
+            return null;
+        }
+
+        final long start = System.nanoTime();
+        try {
+            return (T) codec.decode(entry.data);
+        } catch (final IOException e) {
+            Log.d(TAG, String.format("Failed to decode with codec %d: %s", entry.valueCodec, e));
+            return null;
+        } finally {
+            this.mStats.mDecode.recordSince(start);
+        }
+    }
+
+    /**
+     * Keeps the values decoded by {@link #get} so that repeated hits on an entry that
+     * has not been written since are served without reading or decoding it again.
+     * Values are held through soft or weak references and are shared between callers,
+     * which must not mutate them.
+     *
+     * @param soft True to keep values until memory runs low, false to keep them only
+     *             while a caller still holds them.
+     */
+    public void enableDecodedValueCache(final boolean soft) {
+        this.mDecoded = new DecodedValueCache(soft);
+    }
+
+    /**
+     * Stops keeping decoded values and drops those kept.
+     */
+    public void disableDecodedValueCache() {
+        this.mDecoded = null;
+    }
+
+    /**
+     * Sets the filter deciding which puts are stored, or null to store every put. Even
+     * without a filter, entries larger than the whole cache are never stored. A put
+     * that is turned away returns false and removes any previous entry of the key.
+     */
+    public void setAdmissionFilter(final AdmissionFilter filter) {
+        if (filter != null) {
+            filter.ensureCapacity(this.mEntries.size());
+        }
+        this.mAdmission = filter;
+    }
+
+    /**
+     * Returns true if the entry may be stored. An entry turned away does not replace
+     * the previous entry of the key, which is removed instead so that it is not
+     * served stale.
+     */
+    private boolean admit(final String key, final Entry entry) {
+        final AdmissionFilter filter = this.mAdmission;
+        if (filter != null) {
+            filter.ensureCapacity(this.mEntries.size());
+        }
+
+        if (entry.data.length <= this.mMaxCacheSizeInBytes && (filter == null || filter.admit(key, entry))) {
+            return true;
+        }
+
+        Log.d(TAG, String.format("Not admitting key=%s, %d bytes", key, entry.data.length));
+        remove(key);
+        return false;
+    }
+
+    /**
+     * Returns the region with the given name, creating it if needed. The entries of a
+     * region are stored in this cache under keys prefixed with its name, and count
+     * towards both the quota of the region and the size of the cache.
+     * <p>
+     * A region may use more than its quota while the cache has room. Once the cache is
+     * full, a write to a region over its quota evicts from that region, in the order
+     * of its own policy, and any other write evicts from the regions over their quota
+     * before evicting in the order of the cache policy. Regions should be created
+     * before the cache is initialized; entries indexed by a load in progress while a
+     * region is created may not count towards its quota.
+     *
+     * @param name         The region name, which must not be empty.
+     * @param quotaInBytes The share of the cache guaranteed to the region, in bytes.
+     * @param policy       The policy choosing the entries the region evicts.
+     * @return The region; an existing region keeps its quota and policy.
+     */
+    public CacheRegion region(final String name, final long quotaInBytes, final EvictionPolicy policy) {
+        if (name.length() == 0 || name.indexOf(CacheRegion.SEPARATOR) >= 0) {
+            throw new IllegalArgumentException("Invalid region name: " + name);
+        }
+
+        final CacheRegion existing = this.mRegions.get(name);
+        if (existing != null) {
+            return existing;
+        }
+
+        lockAll();
+        try {
+            synchronized (this.mPruneLock) {
+                final CacheRegion created = this.mRegions.get(name);
+                if (created != null) {
+                    return created;
+                }
+
+                final CacheRegion region = new CacheRegion(this, name, quotaInBytes, policy);
+                for (final CacheHeader entry : this.mEntries.values()) {
+                    if (entry.mKey.startsWith(region.prefix())) {
+                        region.onIndexed(entry.mKey, entry.mSize, entry.mSize);
+                    }
+                }
+                this.mRegions.put(name, region);
+                return region;
+            }
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Returns the region with the given name that evicts its least recently used
+     * entries first, creating it if needed.
+     */
+    public CacheRegion region(final String name, final long quotaInBytes) {
+        return region(name, quotaInBytes, new LruPolicy());
+    }
+
+    /**
+     * Rejects keys that would be taken for the key of a region entry.
+     */
+    static void checkKey(final String key) {
+        if (key.indexOf(CacheRegion.SEPARATOR) >= 0) {
+            throw new IllegalArgumentException("Key contains the region separator: " + key);
+        }
+    }
+
+    /**
+     * Returns the region the key belongs to, or null.
+     */
+    private CacheRegion regionOf(final String key) {
+        if (this.mRegions.isEmpty()) {
+            return null;
+        }
+
+        final String name = CacheRegion.regionNameOf(key);
+        return name == null ? null : this.mRegions.get(name);
+    }
+
+    /**
+     * Returns the indexed and staged keys starting with the given prefix.
+     */
+    private List<String> keysWithPrefix(final String prefix) {
+        final Set<String> keys = new LinkedHashSet<String>();
+        for (final String key : this.mKeys.tailSet(prefix)) {
+            if (!key.startsWith(prefix)) {
+                break;
+            }
+            keys.add(key);
+        }
+        for (final String key : this.mStaged.keySet()) {
+            if (key.startsWith(prefix)) {
+                keys.add(key);
+            }
+        }
+        return new ArrayList<String>(keys);
+    }
+
+    private void forgetDecoded(final String key) {
+        final DecodedValueCache decoded = this.mDecoded;
+        if (decoded != null) {
+            decoded.remove(key);
+        }
+    }
+
+    /**
+     * Registers a value codec, replacing any codec with the same id. Values are offered
+     * to the most recently registered codecs first; the built-in codecs for byte arrays,
+     * strings and, for everything else, Parcel are registered by default.
+     */
+    public void registerValueCodec(final ValueCodec codec) {
+        final int id = codec.id();
+        if (id < 0 || id > (FLAG_VALUE_CODEC_MASK >>> FLAG_VALUE_CODEC_SHIFT)) {
+            throw new IllegalArgumentException("Value codec id must be between 0 and 15: " + id);
+        }
+
+        synchronized (this.mValueEncoders) {
+            final ValueCodec previous = this.mValueCodecs.getAndSet(id, codec);
+            if (previous != null) {
+                this.mValueEncoders.remove(previous);
+            }
+            this.mValueEncoders.add(0, codec);
+        }
+    }
+
+    /**
+     * Clears the cache. Deletes all cached files from disk.
+     */
+    @Override
+    public void clear() {
+        lockAll();
+        try {
+            deleteContents(this.mRootDirectory);
+            if (this.mShared != null) {
+                this.mShared.clear();
+            }
+
+            synchronized (this.mPruneLock) {
+                this.mGeneration.incrementAndGet();
+                for (final String key : this.mStaged.keySet()) {
+                    unstage(key);
+                }
+                this.mWriteQueue.clear();
+                this.mEntries.clear();
+                this.mKeys.clear();
+                this.mTagIndex.clear();
+                this.mDeleteQueue.clear();
+                this.mExpiryIndex.clear();
+                this.mTotalSize.set(0);
+                this.mPolicy.clear();
+                for (final CacheRegion region : this.mRegions.values()) {
+                    region.reset();
+                }
+                this.mLoads.clear();
+                this.mJournal.reset();
+                final DecodedValueCache decoded = this.mDecoded;
+                if (decoded != null) {
+                    decoded.clear();
+                }
+            }
+        } finally {
+            unlockAll();
+        }
+        Log.d(TAG, "Cache cleared.");
+    }
+
+    /**
+     * Deletes the files and subdirectories of a directory, except the shared index,
+     * which other processes may have mapped.
+     */
+    private static void deleteContents(final File directory) {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (final File file : files) {
+            if (file.isDirectory()) {
+                deleteContents(file);
+                file.delete();
+            } else if (!SharedIndex.isIndexFile(file)) {
+                file.delete();
+            }
+        }
+    }
+
+    @Override
+    public boolean has(final String key) {
+        if (this.mStaged.containsKey(key)) {
+            return true;
+        }
+
+        final long version = sharedVersion(key);
+        if (version >= 0) {
+            return version > 0;
+        }
+        return this.mEntries.containsKey(key) || (!this.mReady && probeEntry(key) != null);
+    }
+
+    @Override
+    public <T> T get(final String key) {
+        final long start = System.nanoTime();
+        try {
+            final DecodedValueCache decoded = this.mDecoded;
+            final T value = decoded == null || this.mStaged.containsKey(key)
+                ? this.<T>readValue(key)
+                : this.<T>readValue(key, decoded);
+            if (value == null) {
+                this.mStats.recordMiss();
+            } else {
+                this.mStats.recordHit();
+            }
+            return value;
+        } finally {
+            this.mStats.mGet.recordSince(start);
+        }
+    }
+
+    /**
+     * Returns the value of the key, or null if it is absent or expired, without
+     * recording a hit or a miss.
+     */
+    <T> T readValue(final String key) {
+        final Entry entry = getEntry(key);
+        if (null == entry || entry.data == null || entry.isExpired()) {
+            return null;
+        }
+
+        return decode(entry);
+    }
+
+    /**
+     * Reads a value through the decoded value cache. The index record of the entry is
+     * its generation: every write of the entry indexes a new record, so a value kept
+     * for an older record is never returned.
+     */
+    private <T> T readValue(final String key, final DecodedValueCache decoded) {
+        final CacheHeader header = lookupEntry(key);
+        if (header == null || header.mTtl < System.currentTimeMillis()) {
+            return null;
+        }
+
+        final T cached = decoded.get(key, header);
+        if (cached != null) {
+            return cached;
+        }
+
+        final Entry entry = readEntry(key);
+        if (null == entry || entry.data == null || entry.isExpired()) {
+            return null;
+        }
+
+        final T value = decode(entry);
+        if (value != null) {
+            decoded.put(key, header, value);
+        }
+        return value;
+    }
+
+    /**
+     * Initializes the DiskCache by replaying the index journal, falling back to
+     * scanning for all files currently in the specified root directory when the
+     * journal is missing or fails validation. Creates the root directory if necessary.
+     */
+    @Override
+    public void initialize() {
+        final FutureTask<Void> task;
+        synchronized (this.mInitializationLock) {
+            if (this.mInitialization == null) {
+                this.mInitialization = newInitialization();
+            }
+            task = this.mInitialization;
+        }
+
+        // loads the index on this thread, unless another load already started, and
+        // waits for whichever load runs
+        task.run();
+        try {
+            task.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (final ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Starts loading the index on a background thread and returns immediately. Until
+     * the returned future completes, keys that are already indexed are served right
+     * away and any other key is looked up by probing the header of its file.
+     *
+     * @return A future that completes once the whole index is loaded.
+     */
+    public Future<Void> initializeAsync() {
+        synchronized (this.mInitializationLock) {
+            if (this.mInitialization == null) {
+                this.mInitialization = newInitialization();
+                INITIALIZATION_POOL.execute(this.mInitialization);
+            }
+
+            return this.mInitialization;
+        }
+    }
+
+    /**
+     * Returns a task loading the index, shared by {@link #initialize()} and
+     * {@link #initializeAsync()} so that the index is only loaded once.
+     */
+    private FutureTask<Void> newInitialization() {
+        final long start = System.currentTimeMillis();
+        return new FutureTask<Void>(new Callable<Void>() {
+            @Override
+            public Void call() {
+                try {
+                    loadIndex(start);
+                } finally {
+                    markReady(start);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Returns true once the index is completely loaded.
+     */
+    public boolean isReady() {
+        return this.mReady;
+    }
+
+    /**
+     * Returns how long the index took to load in milliseconds, or -1 if it has not
+     * finished loading yet.
+     */
+    public long getTimeToReadyMillis() {
+        return this.mTimeToReadyMillis;
+    }
+
+    private void markReady(final long start) {
+        if (!this.mReady) {
+            this.mTimeToReadyMillis = System.currentTimeMillis() - start;
+            this.mStats.mInitialize.record(TimeUnit.MILLISECONDS.toNanos(this.mTimeToReadyMillis));
+            this.mReady = true;
+            this.mRemovedWhileLoading.clear();
+            Log.d(TAG, String.format("Index ready in %d ms, %d entries", this.mTimeToReadyMillis, this.mEntries.size()));
+        }
+    }
+
+    /**
+     * @param start The time the load started, see {@link #sweepOrphans(long, int)}.
+     */
+    private void loadIndex(final long start) {
+        if (!this.mRootDirectory.exists()) {
+            if (!this.mRootDirectory.mkdirs()) {
+                Log.e(TAG, String.format("Unable to create cache dir %s", this.mRootDirectory.getAbsolutePath()));
+            }
+            return;
+        }
+
+        final int generation = this.mGeneration.get();
+        final List<CacheHeader> journaled = this.mJournal.replay();
+        if (journaled != null) {
+            for (final CacheHeader entry : journaled) {
+                if (generation != this.mGeneration.get()) {
+                    // cleared while loading, everything left to load is gone
+                    return;
+                }
+                indexEntry(entry);
+            }
+
+            // the journal does not see files a crash left behind, look for them off
+            // the critical path
+            INITIALIZATION_POOL.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sweepOrphans(start, generation);
+                }
+            });
+            return;
+        }
+
+        Log.d(TAG, "No valid journal, scanning cache files.");
+        scanFiles(generation);
+        this.mJournal.rebuild(snapshotEntries());
+    }
+
+    /**
+     * Rebuilds the index by reading the header of every file in the cache directories,
+     * migrating the files found in the flat layout of older versions.
+     */
+    private void scanFiles(final int generation) {
+        final File[] files = this.mRootDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (final File file : files) {
+            if (generation != this.mGeneration.get()) {
+                return;
+            }
+            if (file.isDirectory()) {
+                if (!scanDirectory(file, 1, generation)) {
+                    return;
+                }
+                continue;
+            }
+            if (IndexJournal.isJournalFile(file) || SharedIndex.isIndexFile(file)) {
+                continue;
+            }
+            if (file.getName().endsWith(TEMP_FILE_SUFFIX)) {
+                // left behind by a write that never got published, unless another
+                // process is still writing it
+                if (this.mShared == null || file.lastModified() < System.currentTimeMillis() - STALE_TEMP_FILE_MILLIS) {
+                    file.delete();
+                }
+                continue;
+            }
+
+            // top-level cache files were written in the flat layout of older versions
+            migrateLegacyFile(file);
+        }
+    }
+
+    /**
+     * Deletes the files a crash left behind the journal: temporary files of writes
+     * that were never published, and cache files of entries the replayed journal does
+     * not hold, such as puts whose record was lost or invalidated entries whose file
+     * was not deleted yet. Only file names are listed and no header is read. Files
+     * modified since the load started are kept, as they may be written by this cache.
+     *
+     * @param start      The time the load started.
+     * @param generation The generation the index was loaded in.
+     */
+    private void sweepOrphans(final long start, final int generation) {
+        final long threshold = start - MTIME_GRANULARITY_MILLIS;
+        final List<File> files = new ArrayList<File>();
+        final File[] top = this.mRootDirectory.listFiles();
+        if (top == null) {
+            return;
+        }
+        for (final File file : top) {
+            if (file.isDirectory()) {
+                listCacheFiles(file, 1, files);
+            } else if (file.getName().endsWith(TEMP_FILE_SUFFIX) && file.lastModified() < threshold) {
+                file.delete();
+            }
+        }
+
+        // the index is read after the listing, so that any file listed that belongs
+        // to an entry indexed in the meantime is known
+        final Set<String> indexed = new HashSet<String>(this.mEntries.size() * 2);
+        for (final String key : this.mEntries.keySet()) {
+            indexed.add(getFilenameForKey(key));
+        }
+
+        int deleted = 0;
+        for (final File file : files) {
+            if (generation != this.mGeneration.get()) {
+                return;
+            }
+            if (!indexed.contains(file.getName()) && file.lastModified() < threshold && file.delete()) {
+                deleted++;
+            }
+        }
+        if (deleted > 0) {
+            Log.d(TAG, String.format("Deleted %d orphaned cache files", deleted));
+        }
+    }
+
+    private static void listCacheFiles(final File directory, final int level, final List<File> files) {
+        final File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+
+        for (final File file : children) {
+            if (file.isDirectory()) {
+                if (level < FAN_OUT_LEVELS) {
+                    listCacheFiles(file, level + 1, files);
+                }
+            } else {
+                files.add(file);
+            }
+        }
+    }
+
+    /**
+     * Indexes the cache files of a fan-out subdirectory.
+     *
+     * @return False if the cache was cleared during the scan.
+     */
+    private boolean scanDirectory(final File directory, final int level, final int generation) {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return true;
+        }
+
+        for (final File file : files) {
+            if (generation != this.mGeneration.get()) {
+                return false;
+            }
+            if (file.isDirectory()) {
+                if (level < FAN_OUT_LEVELS && !scanDirectory(file, level + 1, generation)) {
+                    return false;
+                }
+                continue;
+            }
+
+            try {
+                indexEntry(readIndexHeader(file));
+            } catch (final IOException e) {
+                e.printStackTrace();
+                file.delete();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Moves a cache file written in the flat layout of older versions to the path of
+     * its key and indexes it.
+     *
+     * @return The header of the entry, or null if the file was dropped.
+     */
+    private CacheHeader migrateLegacyFile(final File file) {
+        final CacheHeader entry;
+        try {
+            entry = readIndexHeader(file);
+        } catch (final IOException e) {
+            file.delete();
+            return null;
+        }
+
+        final Lock lock = lockFor(entry.mKey).writeLock();
+        lock.lock();
+        try {
+            final File target = getFileForKey(entry.mKey);
+            if (target.exists()) {
+                // put since the upgrade, the legacy file is older
+                file.delete();
+                return null;
+            }
+            if (!makeParentDirectories(target) || !file.renameTo(target)) {
+                Log.d(TAG, String.format("Could not migrate %s to %s", file.getAbsolutePath(), target.getAbsolutePath()));
+                return null;
+            }
+
+            indexEntry(entry);
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reads the header of a cache file along with the size and body offset the index
+     * keeps for it.
+     */
+    private static CacheHeader readIndexHeader(final File file) throws IOException {
+        CountingInputStream cis = null;
+
+        try {
+            cis = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+            final CacheHeader entry = CacheHeader.readHeader(cis);
+            entry.mSize = file.length();
+            entry.mBodyOffset = cis.mBytesRead;
+            return entry;
+        } finally {
+            Streams.closeQuietly(cis);
+        }
+    }
+
+    /**
+     * Adds an entry found at startup to the index. Entries written while the index is
+     * loading are newer than the one found and are kept.
+     */
+    private void indexEntry(final CacheHeader entry) {
+        if (this.mRemovedWhileLoading.contains(entry.mKey)) {
+            return;
+        }
+
+        if (this.mShared != null) {
+            entry.mVersion = this.mShared.attach(entry.mKey, entry.mSize);
+        }
+
+        if (this.mEntries.putIfAbsent(entry.mKey, entry) == null) {
+            this.mTotalSize.addAndGet(entry.mSize);
+            this.mExpiryIndex.add(entry);
+            indexKey(entry, null);
+            this.mPolicy.onPut(entry.mKey, entry.mSize);
+            final CacheRegion region = regionOf(entry.mKey);
+            if (region != null) {
+                region.onIndexed(entry.mKey, entry.mSize, entry.mSize);
+            }
+        }
+    }
+
+    /**
+     * Looks up a key that is not indexed yet while the index is still loading, by
+     * reading the header of the file the key maps to.
+     */
+    private CacheHeader probeEntry(final String key) {
+        final File file = getFileForKey(key);
+        if (!file.exists()) {
+            final File legacy = new File(this.mRootDirectory, getLegacyFilenameForKey(key));
+            if (!legacy.exists() || migrateLegacyFile(legacy) == null) {
+                return null;
+            }
+        }
+
+        final Lock lock = lockFor(key).readLock();
+
+        lock.lock();
+        try {
+            final CacheHeader entry = readIndexHeader(file);
+            if (!key.equals(entry.mKey)) {
+                return null;
+            }
+
+            indexEntry(entry);
+            return this.mEntries.get(key);
+        } catch (final IOException e) {
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the indexed entries from the first to the last to evict.
+     */
+    private List<CacheHeader> snapshotEntries() {
+        final List<CacheHeader> entries = new ArrayList<CacheHeader>(this.mEntries.size());
+        for (final Iterator<String> i = this.mPolicy.evictionOrder(); i.hasNext(); ) {
+            final CacheHeader entry = this.mEntries.get(i.next());
+            if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Invalidates an entry in the cache.
+     *
+     * @param key        Cache key
+     * @param fullExpire True to fully expire the entry, false to soft expire
+     */
+    @Override
+    public void invalidate(final String key, final boolean fullExpire) {
+        forgetDecoded(key);
+        rewriteTimes(key, KEEP_TIME, fullExpire ? 0 : KEEP_TIME, 0);
+    }
+
+    /**
+     * Marks an entry fresh again after its data source confirmed it unchanged, e.g.
+     * with an HTTP 304 response, rewriting the times in the header of its file in
+     * place rather than the whole file.
+     *
+     * @param key        Cache key
+     * @param serverDate Date of the confirming response as reported by the server.
+     * @param ttl        New TTL for the record.
+     * @param softTtl    New soft TTL for the record.
+     * @return True if the entry was found and updated
+     */
+    public boolean revalidate(final String key, final long serverDate, final long ttl, final long softTtl) {
+        return rewriteTimes(key, serverDate, expiryFor(ttl), expiryFor(Math.min(softTtl, ttl)));
+    }
+
+    /**
+     * Reads the metadata of an entry, its etag, dates, TTLs and response headers, from
+     * the header of its file without reading the data. Expired entries are returned
+     * too, so that they can be revalidated.
+     *
+     * @param key Cache key
+     * @return The entry with null data, or null in the event of a cache miss
+     */
+    public Entry getMetadata(final String key) {
+        final Entry staged = this.mStaged.get(key);
+        if (staged != null) {
+            return new CacheHeader(key, staged).toCacheEntry(null);
+        }
+
+        if (lookupEntry(key) == null) {
+            return null;
+        }
+
+        final Lock lock = lockFor(key).readLock();
+        InputStream in = null;
+
+        lock.lock();
+        try {
+            in = new BufferedInputStream(new FileInputStream(getFileForKey(key)), 1024);
+            final CacheHeader header = CacheHeader.readHeader(in);
+            return key.equals(header.mKey) ? header.toCacheEntry(null) : null;
+        } catch (final IOException e) {
+            return null;
+        } finally {
+            Streams.closeQuietly(in);
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Overwrites the times in the fixed-size part of the header of an entry and
+     * updates its index record; the data and the rest of the header are not touched.
+     * Files in the version 1 format, whose times follow the key, are rewritten whole
+     * in the current format instead.
+     *
+     * @param serverDate The new server date, or {@link #KEEP_TIME}.
+     * @param ttl        The new expiry time, or {@link #KEEP_TIME}.
+     * @param softTtl    The new soft expiry time, or {@link #KEEP_TIME}.
+     * @return True if the entry was found and updated
+     */
+    private boolean rewriteTimes(final String key, final long serverDate, final long ttl, final long softTtl) {
+        // a staged put is written first, so that there is a header to update
+        flushStaged(key);
+
+        final Lock lock = lockFor(key).writeLock();
+        RandomAccessFile file = null;
+
+        lock.lock();
+        try {
+            final CacheHeader indexed = lookupEntry(key);
+            if (indexed == null) {
+                return false;
+            }
+
+            file = new RandomAccessFile(getFileForKey(key), "rw");
+            final FileChannel channel = file.getChannel();
+            final ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+            while (magic.hasRemaining() && channel.read(magic, magic.position()) > 0) {
+                // read the whole magic number
+            }
+
+            final CacheHeader header = CacheHeader.readHeader(new BufferedInputStream(Channels.newInputStream(channel), 1024));
+            if (!key.equals(header.mKey)) {
+                return false;
+            }
+
+            header.mServerDate = serverDate == KEEP_TIME ? header.mServerDate : serverDate;
+            header.mTtl = ttl == KEEP_TIME ? header.mTtl : ttl;
+            header.mSoftTtl = softTtl == KEEP_TIME ? header.mSoftTtl : softTtl;
+
+            if (magic.getInt(0) != CACHE_MAGIC) {
+                Streams.closeQuietly(file);
+                file = null;
+                final Entry entry = getEntry(key);
+                if (entry == null) {
+                    return false;
+                }
+                entry.serverDate = header.mServerDate;
+                entry.ttl = header.mTtl;
+                entry.softTtl = header.mSoftTtl;
+                return writeEntry(key, entry, true);
+            }
+
+            final ByteBuffer times = ByteBuffer.allocate(4 * 8).order(ByteOrder.LITTLE_ENDIAN);
+            times.putLong(header.mServerDate).putLong(header.mLastModified).putLong(header.mTtl).putLong(header.mSoftTtl);
+            times.flip();
+            while (times.hasRemaining()) {
+                channel.write(times, HEADER_TIMES_OFFSET + times.position());
+            }
+            this.mStats.recordBytesWritten(times.limit());
+
+            final CacheHeader updated = indexed.copy();
+            updated.mServerDate = header.mServerDate;
+            updated.mTtl = header.mTtl;
+            updated.mSoftTtl = header.mSoftTtl;
+            putEntry(key, updated);
+            return true;
+        } catch (final IOException e) {
+            Log.d(TAG, String.format("Could not update header for key=%s: %s", key, e));
+            return false;
+        } finally {
+            Streams.closeQuietly(file);
+            lock.unlock();
+        }
+    }
+
+    /*
+     * Homebrewed simple serialization system used for reading and writing cache
+     * headers on disk. Once upon a time, this used the standard Java
+     * Object{Input,Output}Stream, but the default implementation relies heavily
+     * on reflection (even for standard types) and generates a ton of garbage.
+     */
+
+    /**
+     * Puts the entry with the specified key into the cache.
+     */
+    @Override
+    public boolean put(final String key, final Object value, long ttl) {
+        return put(key, value, ttl, ttl);
+    }
+
+    /**
+     * Puts the entry with the specified key into the cache, due for a refresh once
+     * softTtl has passed. See {@link #getOrRefresh(String, Loader, long, long)}.
+     */
+    public boolean put(final String key, final Object value, final long ttl, final long softTtl) {
+        checkKey(key);
+        final long start = System.nanoTime();
+        try {
+            final Entry entry = encode(value, ttl, softTtl);
+            return entry != null && putEntry(key, entry);
+        } finally {
+            this.mStats.mPut.recordSince(start);
+        }
+    }
+
+    /**
+     * Puts the entry with the specified key into the cache, tagged so that it can be
+     * invalidated along with the other entries sharing a tag. See
+     * {@link #invalidateByTag(String)}.
+     *
+     * @param tags The tags of the entry, or null for none.
+     */
+    public boolean put(final String key, final Object value, final long ttl, final Collection<String> tags) {
+        checkKey(key);
+        final long start = System.nanoTime();
+        try {
+            final Entry entry = encode(value, ttl);
+            if (entry == null) {
+                return false;
+            }
+
+            entry.tags = tagSet(tags);
+            return putEntry(key, entry);
+        } finally {
+            this.mStats.mPut.recordSince(start);
+        }
+    }
+
+    /**
+     * Returns a copy of the given tags, treating null as no tags.
+     */
+    static Set<String> tagSet(final Collection<String> tags) {
+        return tags == null || tags.isEmpty() ? Collections.<String>emptySet() : new HashSet<String>(tags);
+    }
+
+    /**
+     * Removes every entry whose key starts with the given prefix, in time proportional
+     * to the number of such entries. The entries are gone from the index when this
+     * returns, but their files are deleted in batches on a background thread; until
+     * then they still take up disk space. Files a crash leaves behind are deleted after
+     * the next startup. Entries not indexed yet while the index loads are not matched.
+     *
+     * @return The number of entries removed.
+     */
+    public int invalidateByPrefix(final String prefix) {
+        return invalidateKeys(keysWithPrefix(prefix));
+    }
+
+    /**
+     * Removes every entry tagged with the given tag, like
+     * {@link #invalidateByPrefix(String)}.
+     *
+     * @return The number of entries removed.
+     */
+    public int invalidateByTag(final String tag) {
+        return invalidateByTag(tag, "");
+    }
+
+    /**
+     * Removes every entry tagged with the given tag whose key starts with the given
+     * prefix.
+     */
+    int invalidateByTag(final String tag, final String prefix) {
+        final Set<String> keys = new LinkedHashSet<String>();
+        final Set<String> tagged = this.mTagIndex.get(tag);
+        if (tagged != null) {
+            for (final String key : tagged) {
+                if (key.startsWith(prefix)) {
+                    keys.add(key);
+                }
+            }
+        }
+        for (final Map.Entry<String, Entry> e : this.mStaged.entrySet()) {
+            if (e.getValue().tags != null && e.getValue().tags.contains(tag) && e.getKey().startsWith(prefix)) {
+                keys.add(e.getKey());
+            }
+        }
+        return invalidateKeys(keys);
+    }
+
+    /**
+     * Drops the given keys from the index and queues their files for deletion.
+     */
+    private int invalidateKeys(final Collection<String> keys) {
+        int removed = 0;
+        for (final String key : keys) {
+            final Lock lock = lockFor(key).writeLock();
+            lock.lock();
+            try {
+                if (!this.mReady) {
+                    this.mRemovedWhileLoading.add(key);
+                }
+                forgetDecoded(key);
+                final boolean staged = unstage(key) != null;
+                if (this.mShared != null) {
+                    this.mShared.remove(key);
+                }
+                if (unindexEntry(key) != null) {
+                    this.mJournal.remove(key);
+                    this.mDeleteQueue.add(key);
+                    removed++;
+                } else if (staged) {
+                    removed++;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        if (removed > 0) {
+            compactJournalIfNeeded();
+            if (!this.mDeleteQueue.isEmpty() && this.mDeleterScheduled.compareAndSet(false, true)) {
+                REAPER_POOL.execute(this.mDeleter);
+            }
+            Log.d(TAG, String.format("Invalidated %d entries", removed));
+        }
+        return removed;
+    }
+
+    /**
+     * Returns the number of invalidated entries whose files are not deleted yet.
+     */
+    public int getPendingDeleteCount() {
+        return this.mDeleteQueue.size();
+    }
+
+    /**
+     * Deletes the files of invalidated entries in batches until the delete queue is
+     * empty. A key put again since it was invalidated keeps its new file.
+     */
+    private void drainDeleteQueue() {
+        final List<String> batch = new ArrayList<String>(DELETE_BATCH_SIZE);
+        while (true) {
+            this.mDeleteQueue.drainTo(batch, DELETE_BATCH_SIZE);
+            if (batch.isEmpty()) {
+                this.mDeleterScheduled.set(false);
+                // a key may have been queued after the drain but before the flag was cleared
+                if (this.mDeleteQueue.isEmpty() || !this.mDeleterScheduled.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+
+            for (final String key : batch) {
+                final Lock lock = lockFor(key).writeLock();
+                lock.lock();
+                try {
+                    if (this.mEntries.containsKey(key) || sharedVersion(key) > 0) {
+                        continue;
+                    }
+                    if (!getFileForKey(key).delete()) {
+                        Log.d(TAG, String.format("Could not delete cache entry for key=%s, filename=%s", key, getFilenameForKey(key)));
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    @Override
+    public <T> T getOrLoad(final String key, final Loader<T> loader, final long ttl) {
+        return getOrRefresh(key, loader, ttl, ttl);
+    }
+
+    /**
+     * Retrieves an entry, serving it stale while it is revalidated. Once the soft TTL of
+     * the entry has passed the cached value is still returned, and a single refresh
+     * through the loader is started in the background. Only a missing or fully expired
+     * entry is loaded on the caller's thread, sharing the load with concurrent misses
+     * as in {@link #getOrLoad(String, Loader, long)}.
+     *
+     * @param key     Cache key
+     * @param loader  Loads the value from its original data source.
+     * @param ttl     TTL for loaded records.
+     * @param softTtl Time after which a loaded record is refreshed.
+     * @return The value, or null if it is not cached and the loader failed or found none
+     */
+    public <T> T getOrRefresh(final String key, final Loader<T> loader, final long ttl, final long softTtl) {
+        final Entry entry = getEntry(key);
+        if (null == entry || entry.data == null || entry.isExpired()) {
+            this.mStats.recordMiss();
+            return load(key, loader, ttl, softTtl);
+        }
+
+        this.mStats.recordHit();
+        if (entry.refreshNeeded() && this.mRefreshing.add(key)) {
+            REFRESH_POOL.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        load(key, loader, ttl, softTtl);
+                    } finally {
+                        DiskCache.this.mRefreshing.remove(key);
+                    }
+                }
+            });
+        }
+
+        return decode(entry);
+    }
+
+    private <T> T load(final String key, final Loader<T> loader, final long ttl, final long softTtl) {
+        return this.mLoads.load(key, new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                // a load that completed after this caller missed may have stored it already
+                final Entry entry = getEntry(key);
+                if (entry != null && entry.data != null && !entry.isExpired() && !entry.refreshNeeded()) {
+                    return decode(entry);
+                }
+
+                final T value = DiskCache.this.mStats.load(key, loader);
+                if (value != null) {
+                    put(key, value, ttl, softTtl);
+                }
+                return value;
+            }
+        });
+    }
+
+    /**
+     * Removes the specified key from the cache if it exists.
+     */
+    @Override
+    public void remove(final String key) {
+        final Lock lock = lockFor(key).writeLock();
+        lock.lock();
+        try {
+            if (!this.mReady) {
+                this.mRemovedWhileLoading.add(key);
+            }
+            forgetDecoded(key);
+            unstage(key);
+            final boolean deleted = getFileForKey(key).delete();
+            removeEntry(key);
+            if (!deleted) {
+                Log.d(TAG, String.format("Could not delete cache entry for key=%s, filename=%s", key, getFilenameForKey(key)));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public <T> Map<String, T> getAll(final Collection<String> keys) {
+        final Map<String, T> values = new LinkedHashMap<String, T>();
+        for (final String key : keys) {
+            final T value = get(key);
+            if (value != null) {
+                values.put(key, value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Puts the entries into the cache. All values are encoded first, then room is made
+     * for their combined size with a single prune, and the files are written one
+     * after the other.
+     */
+    @Override
+    public boolean putAll(final Map<String, ?> values, final long ttl) {
+        final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+        boolean stored = true;
+        for (final Map.Entry<String, ?> e : values.entrySet()) {
+            checkKey(e.getKey());
+            final Entry entry = encode(e.getValue(), ttl);
+            if (entry == null) {
+                stored = false;
+            } else {
+                entries.put(e.getKey(), entry);
+            }
+        }
+
+        return putEntries(entries).isEmpty() && stored;
+    }
+
+    @Override
+    public void removeAll(final Collection<String> keys) {
+        for (final String key : keys) {
+            remove(key);
+        }
+    }
+
+    @Override
+    public InputStream openInputStream(final String key) {
+        flushStaged(key);
+        if (lookupEntry(key) == null) {
+            return null;
+        }
+
+        final Lock lock = lockFor(key).readLock();
+        InputStream in = null;
+
+        lock.lock();
+        try {
+            in = new BufferedInputStream(new FileInputStream(getFileForKey(key)));
+            final CacheHeader header = CacheHeader.readHeader(in);
+            if (!key.equals(header.mKey) || header.mTtl < System.currentTimeMillis()) {
+                Streams.closeQuietly(in);
+                return null;
+            }
+
+            final int codec = header.mFlags & FLAG_CODEC_MASK;
+            return codec == 0 ? in : codecFor(codec).decompress(in);
+        } catch (final IOException e) {
+            Streams.closeQuietly(in);
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Transfers the data of an entry straight from its file to the target channel
+     * with {@link FileChannel#transferTo}, skipping the header at the offset kept in
+     * the index. The data never passes through the Java heap.
+     *
+     * @param key    Cache key
+     * @param target The channel to write to; it must be in blocking mode.
+     * @return The number of bytes transferred, or -1 in the event of a cache miss
+     */
+    public long transferTo(final String key, final WritableByteChannel target) throws IOException {
+        flushStaged(key);
+        if (lookupEntry(key) == null) {
+            return -1;
+        }
+
+        final Lock lock = lockFor(key).readLock();
+        final CacheHeader entry;
+        boolean compressed = false;
+        FileInputStream in = null;
+
+        // open the file and read its offset together; once open, a concurrent put
+        // replaces the file by rename and cannot change what this stream reads
+        lock.lock();
+        try {
+            entry = this.mEntries.get(key);
+            if (entry == null || entry.mTtl < System.currentTimeMillis() || entry.mBodyOffset <= 0) {
+                return -1;
+            }
+            compressed = (entry.mFlags & FLAG_CODEC_MASK) != 0;
+            if (!compressed) {
+                in = new FileInputStream(getFileForKey(key));
+            }
+        } catch (final FileNotFoundException e) {
+            return -1;
+        } finally {
+            lock.unlock();
+        }
+
+        if (compressed) {
+            // compressed on disk, the data has to be inflated on its way out; this takes
+            // the stripe lock again, which must not be held while opening the stream
+            return copyTo(key, target);
+        }
+
+        try {
+            final FileChannel channel = in.getChannel();
+            final long end = channel.size();
+            long position = entry.mBodyOffset;
+            while (position < end) {
+                final long count = channel.transferTo(position, end - position, target);
+                if (count <= 0) {
+                    throw new IOException("Transfer stalled at " + position + " of " + end + " bytes");
+                }
+                position += count;
+            }
+
+            return end - entry.mBodyOffset;
+        } finally {
+            Streams.closeQuietly(in);
+        }
+    }
+
+    private long copyTo(final String key, final WritableByteChannel target) throws IOException {
+        final InputStream in = openInputStream(key);
+        if (in == null) {
+            return -1;
+        }
+
+        try {
+            final ByteBuffer buffer = ByteBuffer.allocate(8192);
+            long total = 0;
+            for (int count; (count = in.read(buffer.array())) != -1; ) {
+                buffer.clear();
+                buffer.limit(count);
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                total += count;
+            }
+            return total;
+        } finally {
+            Streams.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Sets the codec entries written through {@link #put} are compressed with, or
+     * null to store them raw. Entries that are small or do not compress well are
+     * always stored raw. Entries written through an {@link Editor} are not
+     * compressed.
+     */
+    public void setCompressionCodec(final CompressionCodec codec) {
+        if (codec != null) {
+            registerCompressionCodec(codec);
+        }
+        this.mCodec = codec;
+    }
+
+    /**
+     * Registers a codec to decompress the entries it wrote, replacing any codec with
+     * the same id, without compressing new entries with it. Register the codecs a
+     * previous version of the app compressed entries with, so that they are read
+     * rather than dropped. The built-in {@link DeflateCodec} is registered by default.
+     */
+    public void registerCompressionCodec(final CompressionCodec codec) {
+        final int id = codec.id();
+        if (id <= 0 || id > FLAG_CODEC_MASK) {
+            throw new IllegalArgumentException("Codec id must be between 1 and " + FLAG_CODEC_MASK);
+        }
+
+        this.mCompressionCodecs.set(id, codec);
+    }
+
+    /**
+     * Returns the ratio between the original and the stored size of the entries
+     * written compressed, or 1 if none was.
+     */
+    public float getCompressionRatio() {
+        final long compressed = this.mCompressedBytes.get();
+        return compressed == 0 ? 1f : (float) this.mUncompressedBytes.get() / compressed;
+    }
+
+    /**
+     * Returns the CPU time spent compressing and decompressing entries, in
+     * nanoseconds.
+     */
+    public long getCodecTimeNanos() {
+        return this.mCodecNanos.get();
+    }
+
+    /**
+     * Returns a snapshot of the statistics of the cache. Bytes read count the entries
+     * read whole, by {@link #get} and the tiers in front of this cache; streamed reads
+     * are not counted.
+     */
+    @Override
+    public CacheStats getStats() {
+        return this.mStats.snapshot();
+    }
+
+    /**
+     * Compresses the data if a codec is set and it is worth it, flagging the codec in
+     * the header. Data below {@link #MIN_COMPRESS_SIZE} is stored raw, and so is data
+     * whose leading sample does not shrink below {@link #MAX_SAMPLE_RATIO}.
+     */
+    private byte[] compress(final CacheHeader header, final byte[] data) {
+        final CompressionCodec codec = this.mCodec;
+        header.mFlags &= ~FLAG_CODEC_MASK;
+        if (codec == null || data.length < MIN_COMPRESS_SIZE) {
+            return data;
+        }
+
+        final long start = System.nanoTime();
+        try {
+            if (data.length > COMPRESS_SAMPLE_SIZE) {
+                final byte[] sample = new byte[COMPRESS_SAMPLE_SIZE];
+                System.arraycopy(data, 0, sample, 0, sample.length);
+                if (codec.compress(sample).length > sample.length * MAX_SAMPLE_RATIO) {
+                    return data;
+                }
+            }
+
+            final byte[] compressed = codec.compress(data);
+            if (compressed.length > data.length * MAX_SAMPLE_RATIO) {
+                return data;
+            }
+
+            header.mFlags |= codec.id();
+            this.mUncompressedBytes.addAndGet(data.length);
+            this.mCompressedBytes.addAndGet(compressed.length);
+            return compressed;
+        } catch (final IOException e) {
+            Log.d(TAG, String.format("Failed to compress entry for key=%s: %s", header.mKey, e));
+            return data;
+        } finally {
+            this.mCodecNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private byte[] decompress(final CacheHeader header, final byte[] data) throws IOException {
+        final int codec = header.mFlags & FLAG_CODEC_MASK;
+        if (codec == 0) {
+            return data;
+        }
+
+        final long start = System.nanoTime();
+        try {
+            return Streams.readFully(codecFor(codec).decompress(new ByteArrayInputStream(data)));
+        } finally {
+            this.mCodecNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private CompressionCodec codecFor(final int id) throws IOException {
+        final CompressionCodec codec = this.mCompressionCodecs.get(id);
+        if (codec == null) {
+            throw new IOException("Unknown compression codec " + id);
+        }
+        return codec;
+    }
+
+    @Override
+    public Editor edit(final String key, final long ttl) {
+        checkKey(key);
+        return openEditor(key, ttl);
+    }
+
+    /**
+     * Returns an editor for the key, which may be the key of a region entry.
+     */
+    Editor openEditor(final String key, final long ttl) {
+        try {
+            return new DiskEditor(key, ttl, newTempFile(key));
+        } catch (final IOException e) {
+            Log.d(TAG, String.format("Could not create editor for key=%s: %s", key, e));
+            return null;
+        }
+    }
+
+    /**
+     * Returns the version of the entry for the given key in the shared index, 0 if
+     * there is none, or -1 if the cache is not in multi-process mode or the shared
+     * index is unavailable.
+     */
+    private long sharedVersion(final String key) {
+        return this.mShared == null ? -1 : this.mShared.version(key);
+    }
+
+    /**
+     * Reindexes an entry another process put or removed since this process indexed it.
+     *
+     * @param version The version of the entry in the shared index, 0 if it is gone.
+     * @return The current header, or null if the entry is gone.
+     */
+    private CacheHeader syncEntry(final String key, final long version) {
+        final Lock lock = lockFor(key).writeLock();
+        lock.lock();
+        try {
+            CacheHeader entry = null;
+            final File file = getFileForKey(key);
+            if (version > 0 && file.exists()) {
+                try {
+                    entry = readIndexHeader(file);
+                } catch (final IOException e) {
+                    entry = null;
+                }
+            }
+
+            if (entry == null || !key.equals(entry.mKey)) {
+                if (version > 0) {
+                    // the file was lost without its entry being removed
+                    this.mShared.remove(key);
+                }
+                unindexEntry(key);
+                return null;
+            }
+
+            entry.mVersion = version;
+            indexLocally(key, entry);
+            return entry;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the index entry of the key, probing the file system if the index is
+     * still loading, and records the access.
+     */
+    private CacheHeader lookupEntry(final String key) {
+        final AdmissionFilter filter = this.mAdmission;
+        if (filter != null) {
+            filter.record(key);
+        }
+
+        CacheHeader entry = this.mEntries.get(key);
+        final long version = sharedVersion(key);
+        if (version >= 0 && (entry == null ? version > 0 : entry.mVersion != version)) {
+            entry = syncEntry(key, version);
+        }
+        if (entry == null && !this.mReady) {
+            entry = probeEntry(key);
+        }
+        if (entry == null) {
             return null;
         }
 
-        long start = System.currentTimeMillis();
-        final Parcel parcel = Parcel.obtain();
+        this.mPolicy.onAccess(key);
+        final CacheRegion region = regionOf(key);
+        if (region != null) {
+            region.onAccess(key);
+        }
+        this.mJournal.read(key);
+        return entry;
+    }
+
+    protected Entry getEntry(final String key) {
+        final Entry staged = this.mStaged.get(key);
+        if (staged != null) {
+            return staged;
+        }
+
+        if (lookupEntry(key) == null) {
+            return null;
+        }
+
+        return readEntry(key);
+    }
+
+    /**
+     * Reads the entry of an indexed key from its file.
+     */
+    private Entry readEntry(final String key) {
+        final File file = getFileForKey(key);
+        final Lock lock = lockFor(key).readLock();
+        CountingInputStream cis = null;
+        boolean corrupt = false;
+
+        lock.lock();
+        try {
+            cis = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
+            // the index may come from the journal, which does not carry the response headers
+            final CacheHeader header = CacheHeader.readHeader(cis);
+            if (!key.equals(header.mKey)) {
+                return null;
+            }
+            final byte[] data = streamToBytes(cis, (int) (file.length() - cis.mBytesRead));
+            this.mStats.recordBytesRead(cis.mBytesRead);
+            return header.toCacheEntry(decompress(header, data));
+        } catch (final IOException e) {
+            corrupt = true;
+            return null;
+        } catch (final NegativeArraySizeException e) {
+            corrupt = true;
+            return null;
+        } finally {
+            if (cis != null) {
+                try {
+                    cis.close();
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                }
+            }
+            lock.unlock();
+
+            // the read lock cannot be upgraded, drop the entry once it has been released
+            if (corrupt) {
+                remove(key);
+            }
+        }
+    }
+
+    protected boolean putEntry(final String key, final Entry entry) {
+        forgetDecoded(key);
+        if (!admit(key, entry)) {
+            return false;
+        }
+
+        if (this.mWritePermits != null && stage(key, entry)) {
+            return true;
+        }
+
+        return writeEntry(key, entry, true);
+    }
+
+    /**
+     * Writes an entry to its file and publishes it.
+     *
+     * @param prune False if the caller already made room for the entry.
+     */
+    private boolean writeEntry(final String key, final Entry entry, final boolean prune) {
+        final CacheHeader header = new CacheHeader(key, entry);
+        final byte[] data = compress(header, entry.data);
+        if (prune) {
+            pruneRegionIfNeeded(key, data.length);
+            pruneIfNeeded(data.length);
+        }
+
+        return writeFile(key, header, data);
+    }
+
+    /**
+     * Writes a batch of entries, making room for all of them with a single prune
+     * before the first file is written.
+     *
+     * @return The keys of the entries that were not admitted or could not be written.
+     */
+    Set<String> putEntries(final Map<String, Entry> entries) {
+        final Set<String> failed = new HashSet<String>();
+        final Map<String, Entry> admitted = new LinkedHashMap<String, Entry>();
+        for (final Map.Entry<String, Entry> e : entries.entrySet()) {
+            forgetDecoded(e.getKey());
+            if (admit(e.getKey(), e.getValue())) {
+                admitted.put(e.getKey(), e.getValue());
+            } else {
+                failed.add(e.getKey());
+            }
+        }
+
+        if (this.mWritePermits != null) {
+            for (final Map.Entry<String, Entry> e : admitted.entrySet()) {
+                if (!stage(e.getKey(), e.getValue()) && !writeEntry(e.getKey(), e.getValue(), true)) {
+                    failed.add(e.getKey());
+                }
+            }
+            return failed;
+        }
+
+        final List<CacheHeader> headers = new ArrayList<CacheHeader>(admitted.size());
+        final List<byte[]> data = new ArrayList<byte[]>(admitted.size());
+        long bytes = 0;
+        for (final Map.Entry<String, Entry> e : admitted.entrySet()) {
+            final CacheHeader header = new CacheHeader(e.getKey(), e.getValue());
+            final byte[] compressed = compress(header, e.getValue().data);
+            headers.add(header);
+            data.add(compressed);
+            bytes += compressed.length;
+            pruneRegionIfNeeded(e.getKey(), compressed.length);
+        }
+        pruneIfNeeded(bytes);
+
+        for (int i = 0; i < headers.size(); i++) {
+            final String key = headers.get(i).mKey;
+            if (!writeFile(key, headers.get(i), data.get(i))) {
+                failed.add(key);
+            }
+        }
+        // a batch larger than the cache itself could not be made room for up front
+        pruneIfNeeded(0);
+        return failed;
+    }
+
+    /**
+     * Writes the header and the stored data of an entry to a temporary file and
+     * publishes it.
+     */
+    private boolean writeFile(final String key, final CacheHeader header, final byte[] data) {
+        File tmp = null;
+        BufferedOutputStream fos = null;
+
+        try {
+            tmp = newTempFile(key);
+            fos = new BufferedOutputStream(new FileOutputStream(tmp));
+            if (!header.writeHeader(fos)) {
+                Log.d(TAG, String.format("Failed to write header for %s", tmp.getAbsolutePath()));
+                throw new IOException();
+            }
+
+            fos.write(data);
+            fos.close();
+            fos = null;
+            header.mBodyOffset = tmp.length() - data.length;
+            this.mStats.recordBytesWritten(tmp.length());
+            return publish(key, header, tmp);
+        } catch (final IOException e) {
+            if (tmp != null && !tmp.delete()) {
+                Log.d(TAG, String.format("Could not clean up file %s", tmp.getAbsolutePath()));
+            }
+            return false;
+        } finally {
+            Streams.closeQuietly(fos);
+        }
+    }
+
+    /**
+     * Switches the cache to write-behind mode: {@link #put} stages the entry in memory
+     * and returns, and a background writer flushes staged entries in batches. Staged
+     * entries are readable right away, and a key put again before it is flushed is
+     * written once. When maxPendingEntries keys are staged, further puts block until
+     * the writer catches up. Calling it again flushes the staged entries before the
+     * new bound takes effect; puts made meanwhile are written through.
+     *
+     * @param maxPendingEntries The maximum number of staged keys.
+     */
+    public void enableWriteBehind(final int maxPendingEntries) {
+        if (maxPendingEntries <= 0) {
+            throw new IllegalArgumentException("maxPendingEntries must be positive");
+        }
+
+        final Lock mode = this.mWriteMode.writeLock();
+        mode.lock();
+        try {
+            // entries staged under the previous semaphore would return their permits
+            // to the new one
+            this.mWritePermits = null;
+            flush();
+            this.mWritePermits = new Semaphore(maxPendingEntries);
+        } finally {
+            mode.unlock();
+        }
+    }
+
+    /**
+     * Switches the cache back to writing puts on the caller's thread, once the staged
+     * entries are flushed.
+     */
+    public void disableWriteBehind() {
+        final Lock mode = this.mWriteMode.writeLock();
+        mode.lock();
+        try {
+            this.mWritePermits = null;
+            flush();
+        } finally {
+            mode.unlock();
+        }
+    }
+
+    /**
+     * Writes all staged entries and returns once they are on disk.
+     */
+    public void flush() {
+        // the background writer takes keys off its queue before it writes them, so
+        // only an empty staging area means that every staged entry was written
+        while (!this.mStaged.isEmpty()) {
+            for (final String key : this.mStaged.keySet()) {
+                flushStaged(key);
+            }
+        }
+
+        // wait for the writes the background writer already unstaged but not finished;
+        // entries are unstaged and written under their stripe lock
+        lockAll();
+        unlockAll();
+    }
+
+    /**
+     * Returns the number of staged entries not written yet.
+     */
+    public int getPendingWriteCount() {
+        return this.mStaged.size();
+    }
+
+    /**
+     * Stages the entry for the background writer.
+     *
+     * @return False if the entry was not staged and must be written through, because
+     * write-behind is off or being switched, or because waiting for room could
+     * deadlock.
+     */
+    private boolean stage(final String key, final Entry entry) {
+        final Lock mode = this.mWriteMode.readLock();
+        if (!mode.tryLock()) {
+            // the switch flushes under stripe locks the caller may hold
+            return false;
+        }
+
+        try {
+            final Semaphore permits = this.mWritePermits;
+            if (permits == null) {
+                return false;
+            }
+
+            while (true) {
+                final Entry staged = this.mStaged.get(key);
+                if (staged != null) {
+                    if (this.mStaged.replace(key, staged, entry)) {
+                        return true;
+                    }
+                    continue;
+                }
+
+                if (!permits.tryAcquire()) {
+                    if (lockFor(key).isWriteLockedByCurrentThread()) {
+                        // blocking here could wait on the writer, which needs our stripe
+                        return false;
+                    }
+                    permits.acquireUninterruptibly();
+                }
+
+                if (this.mStaged.putIfAbsent(key, entry) == null) {
+                    this.mWriteQueue.add(key);
+                    if (this.mWriterScheduled.compareAndSet(false, true)) {
+                        WRITE_BEHIND_POOL.execute(this.mWriter);
+                    }
+                    return true;
+                }
+                permits.release();
+            }
+        } finally {
+            mode.unlock();
+        }
+    }
+
+    /**
+     * Drops the staged entry of the given key, if any, and returns its permit.
+     */
+    private Entry unstage(final String key) {
+        final Entry staged = this.mStaged.remove(key);
+        if (staged != null) {
+            final Semaphore permits = this.mWritePermits;
+            if (permits != null) {
+                permits.release();
+            }
+        }
+        return staged;
+    }
+
+    /**
+     * Writes the staged entry of the given key, if any.
+     */
+    private void flushStaged(final String key) {
+        if (this.mStaged.containsKey(key)) {
+            writeStaged(key, true);
+        }
+    }
+
+    /**
+     * Writes the staged entry of the given key under its stripe lock, so that readers
+     * find it either staged or on disk.
+     */
+    private void writeStaged(final String key, final boolean prune) {
+        final Lock lock = lockFor(key).writeLock();
+        lock.lock();
+        try {
+            final Entry entry = unstage(key);
+            if (entry != null && !writeEntry(key, entry, prune)) {
+                Log.d(TAG, String.format("Failed to write staged entry for key=%s", key));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes staged entries in batches until the write queue is empty.
+     */
+    private void drainWriteQueue() {
+        final List<String> batch = new ArrayList<String>(WRITE_BATCH_SIZE);
+        while (true) {
+            this.mWriteQueue.drainTo(batch, WRITE_BATCH_SIZE);
+            if (batch.isEmpty()) {
+                this.mWriterScheduled.set(false);
+                // a put may have been queued after the drain but before the flag was cleared
+                if (this.mWriteQueue.isEmpty() || !this.mWriterScheduled.compareAndSet(false, true)) {
+                    return;
+                }
+                continue;
+            }
+
+            long bytes = 0;
+            for (final String key : batch) {
+                final Entry entry = this.mStaged.get(key);
+                if (entry != null && entry.data != null) {
+                    bytes += entry.data.length;
+                    pruneRegionIfNeeded(key, entry.data.length);
+                }
+            }
+            pruneIfNeeded(bytes);
+
+            for (final String key : batch) {
+                writeStaged(key, false);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Returns a new temporary file in the root directory that an entry for the given
+     * key is written to before it is published.
+     */
+    private File newTempFile(final String key) throws IOException {
+        return File.createTempFile(getFilenameForKey(key) + ".", TEMP_FILE_SUFFIX, this.mRootDirectory);
+    }
+
+    /**
+     * Atomically replaces the file of the key with a completely written temporary
+     * file and indexes it. Cache files are only ever replaced by rename, so streams
+     * already open on the previous file keep reading consistent data.
+     */
+    private boolean publish(final String key, final CacheHeader header, final File tmp) {
+        final File file = getFileForKey(key);
+        final Lock lock = lockFor(key).writeLock();
+
+        lock.lock();
+        try {
+            if (!makeParentDirectories(file) || !tmp.renameTo(file)) {
+                Log.d(TAG, String.format("Could not rename %s to %s", tmp.getAbsolutePath(), file.getAbsolutePath()));
+                tmp.delete();
+                return false;
+            }
+
+            header.mSize = file.length();
+            putEntry(key, header);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Creates a pseudo-unique filename for the specified cache key.
+     *
+     * @param key The key to generate a file name for.
+     * @return A pseudo-unique filename.
+     */
+    private String getFilenameForKey(final String key) {
+        final byte[] hash = KEY_DIGEST.get().digest(key.getBytes(UTF_8));
+        final char[] name = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            name[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0x0f];
+            name[2 * i + 1] = HEX_DIGITS[hash[i] & 0x0f];
+        }
+        return new String(name);
+    }
+
+    /**
+     * Creates a filename for a cache entry in the flat layout of older versions, which
+     * joins two 32-bit string hashes and may collide.
+     */
+    private static String getLegacyFilenameForKey(final String key) {
+        final int firstHalfLength = key.length() / 2;
+        String localFilename = String.valueOf(key.substring(0, firstHalfLength).hashCode());
+        localFilename += String.valueOf(key.substring(firstHalfLength).hashCode());
+        return localFilename;
+    }
+
+    /**
+     * Returns a file object for the given cache key.
+     */
+    public File getFileForKey(final String key) {
+        final String filename = getFilenameForKey(key);
+        File directory = this.mRootDirectory;
+        for (int i = 0; i < FAN_OUT_LEVELS; i++) {
+            directory = new File(directory, filename.substring(i * FAN_OUT_DIGITS, (i + 1) * FAN_OUT_DIGITS));
+        }
+        return new File(directory, filename);
+    }
+
+    private static boolean makeParentDirectories(final File file) {
+        final File parent = file.getParentFile();
+        // another thread may create it concurrently
+        return parent.mkdirs() || parent.isDirectory();
+    }
+
+    /**
+     * Returns the lock stripe guarding the file of the given cache key.
+     */
+    // Visible for testing.
+    ReentrantReadWriteLock lockFor(final String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return this.mLocks[h & (LOCK_STRIPES - 1)];
+    }
+
+    private void lockAll() {
+        for (final ReentrantReadWriteLock lock : this.mLocks) {
+            lock.writeLock().lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = this.mLocks.length - 1; i >= 0; i--) {
+            this.mLocks[i].writeLock().unlock();
+        }
+    }
+
+    /**
+     * Starts a background reaper removing expired entries every intervalMillis, at most
+     * a bounded batch per pass so that a large backlog does not hog the disk.
+     * Replaces any reaper already running for this cache.
+     *
+     * @param intervalMillis The delay between two passes in milliseconds.
+     */
+    public void startReaper(final long intervalMillis) {
+        synchronized (this.mExpiryIndex) {
+            if (this.mReaper != null) {
+                this.mReaper.cancel(false);
+            }
+            this.mReaper = REAPER_POOL.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    final int reaped = reapExpired(REAP_BATCH_SIZE);
+                    if (reaped > 0) {
+                        Log.d(TAG, String.format("Reaped %d expired entries", reaped));
+                    }
+                }
+            }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the background reaper, if any.
+     */
+    public void stopReaper() {
+        synchronized (this.mExpiryIndex) {
+            if (this.mReaper != null) {
+                this.mReaper.cancel(false);
+                this.mReaper = null;
+            }
+        }
+    }
+
+    /**
+     * Removes up to maxEntries expired entries, soonest expired first.
+     *
+     * @return The number of entries removed.
+     */
+    public int reapExpired(final int maxEntries) {
+        return removeExpired(maxEntries, -1);
+    }
+
+    /**
+     * Removes expired entries in expiry order. Entries whose stripe is busy are
+     * skipped and left to a later pass.
+     *
+     * @param maxEntries  The maximum number of entries to remove.
+     * @param neededSpace Stop once this amount of bytes fits under the low water mark,
+     *                    or -1 to only stop at maxEntries.
+     * @return The number of entries removed.
+     */
+    private int removeExpired(final int maxEntries, final long neededSpace) {
+        final long now = System.currentTimeMillis();
+        int removed = 0;
+
+        for (final CacheHeader e : this.mExpiryIndex) {
+            if (removed >= maxEntries || e.mTtl >= now) {
+                break;
+            }
+
+            final Lock lock = lockFor(e.mKey).writeLock();
+            if (!lock.tryLock()) {
+                continue;
+            }
+
+            try {
+                if (!this.mEntries.remove(e.mKey, e)) {
+                    // replaced or removed since we looked, the index is updated by whoever did
+                    continue;
+                }
+
+                final boolean deleted = getFileForKey(e.mKey).delete();
+                this.mTotalSize.addAndGet(-e.mSize);
+                this.mExpiryIndex.remove(e);
+                unindexKey(e);
+                this.mPolicy.onRemove(e.mKey);
+                final CacheRegion region = regionOf(e.mKey);
+                if (region != null) {
+                    region.onRemoved(e.mKey, e.mSize, false);
+                    region.recordExpiry();
+                }
+                if (this.mShared != null) {
+                    this.mShared.remove(e.mKey);
+                }
+                this.mJournal.remove(e.mKey);
+                this.mStats.recordExpiry();
+                removed++;
+                if (!deleted) {
+                    Log.d(TAG, String.format("Could not delete cache entry for key=%s, filename=%s", e.mKey, getFilenameForKey(e.mKey)));
+                }
+            } finally {
+                lock.unlock();
+            }
 
-        try {
-            parcel.unmarshall(entry.data, 0, entry.data.length);
-            parcel.setDataPosition(0);
-            return (T) parcel.readValue(getClass().getClassLoader());
-        } finally {
-            parcel.recycle();
-            long end = System.currentTimeMillis();
-            Log.d("" + this.getClass().getName(), "finish time readValue is " + (end - start) + (parcel.readValue(getClass().getClassLoader())));
+            if (neededSpace >= 0 && (currentSize() + neededSpace) < this.mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
+                break;
+            }
         }
 
+        if (removed > 0) {
+            compactJournalIfNeeded();
+        }
+        return removed;
     }
 
     /**
-     * Initializes the DiskCache by scanning for all files currently in the
-     * specified root directory. Creates the root directory if necessary.
+     * Prunes the cache to fit the amount of bytes specified. Expired entries are
+     * reclaimed first; live entries are then evicted in the order chosen by the eviction
+     * policy. A victim whose stripe is busy is skipped rather than waited for, so
+     * pruning never blocks on another key's I/O.
+     *
+     * @param neededSpace The amount of bytes we are trying to fit into the cache.
      */
-    @Override
-    public synchronized void initialize() {
-        if (!this.mRootDirectory.exists()) {
-            if (!this.mRootDirectory.mkdirs()) {
-                Log.e(TAG, String.format("Unable to create cache dir %s", this.mRootDirectory.getAbsolutePath()));
-            }
-            return;
-        }
-
-        final File[] files = this.mRootDirectory.listFiles();
-        if (files == null) {
+    private void pruneIfNeeded(final long neededSpace) {
+        if ((currentSize() + neededSpace) < this.mMaxCacheSizeInBytes) {
             return;
         }
 
-        BufferedInputStream fis = null;
+        synchronized (this.mPruneLock) {
+            if ((currentSize() + neededSpace) < this.mMaxCacheSizeInBytes) {
+                return;
+            }
 
-        for (final File file : files) {
+            final long start = System.nanoTime();
             try {
-                fis = new BufferedInputStream(new FileInputStream(file));
-                final CacheHeader entry = CacheHeader.readHeader(fis);
-                entry.mSize = file.length();
-                putEntry(entry.mKey, entry);
-            } catch (final IOException e) {
-                e.printStackTrace();
-                file.delete();
+                evict(neededSpace);
             } finally {
-                try {
-                    if (fis != null) {
-                        fis.close();
-                    }
-                } catch (IOException ignored) {
-                    ignored.printStackTrace();
-                }
+                this.mStats.mPrune.recordSince(start);
             }
         }
     }
 
     /**
-     * Invalidates an entry in the cache.
-     *
-     * @param key        Cache key
-     * @param fullExpire True to fully expire the entry, false to soft expire
+     * Reclaims expired entries, then evicts from the regions using more than their
+     * quota, then evicts live entries in policy order until the needed space fits under
+     * the low water mark. Must be called with the prune lock held.
      */
-    @Override
-    public synchronized void invalidate(final String key, final boolean fullExpire) {
-        final Entry entry = getEntry(key);
-        if (entry != null) {
-            entry.softTtl = 0;
-            if (fullExpire) {
-                entry.ttl = 0;
+    private void evict(final long neededSpace) {
+        removeExpired(Integer.MAX_VALUE, neededSpace);
+        if ((currentSize() + neededSpace) < this.mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
+            return;
+        }
+
+        for (final CacheRegion region : this.mRegions.values()) {
+            if (region.getBorrowedBytes() > 0) {
+                evictFromRegion(region, 0, neededSpace);
+                if ((currentSize() + neededSpace) < this.mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
+                    return;
+                }
             }
-            put(key, entry, 0);
         }
 
+        for (final Iterator<String> i = this.mPolicy.evictionOrder(); i.hasNext(); ) {
+            evictEntry(i.next(), null);
+            if ((currentSize() + neededSpace) < this.mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
+                break;
+            }
+        }
     }
 
-    /*
-     * Homebrewed simple serialization system used for reading and writing cache
-     * headers on disk. Once upon a time, this used the standard Java
-     * Object{Input,Output}Stream, but the default implementation relies heavily
-     * on reflection (even for standard types) and generates a ton of garbage.
-     */
-
     /**
-     * Puts the entry with the specified key into the cache.
+     * Makes room for a write of the given key to a region that would take it past its
+     * quota while the cache is full, by evicting from that region only. A region within
+     * its quota, or writing while the cache has room, is left to
+     * {@link #pruneIfNeeded(long)}.
+     *
+     * @param neededSpace The amount of bytes about to be written for the key.
      */
-    @Override
-    public synchronized boolean put(final String key, final Object value, long ttl) {
-        final Entry entry = new Entry();
-        final Parcel parcel = Parcel.obtain();
+    private void pruneRegionIfNeeded(final String key, final long neededSpace) {
+        final CacheRegion region = regionOf(key);
+        if (region == null || region.getSize() + neededSpace <= region.getQuotaInBytes()
+            || (currentSize() + neededSpace) < this.mMaxCacheSizeInBytes) {
+            return;
+        }
 
-        try {
-            parcel.setDataPosition(0);
-            parcel.writeValue(value);
-            if (ttl >= (Long.MAX_VALUE >> 1)) {
-                ttl = Long.MAX_VALUE;
-            } else {
-                ttl = BigDecimal.valueOf(ttl)
-                    .add(BigDecimal.valueOf(System.currentTimeMillis())).longValue();
+        synchronized (this.mPruneLock) {
+            final long start = System.nanoTime();
+            try {
+                evictFromRegion(region, neededSpace, neededSpace);
+            } finally {
+                this.mStats.mPrune.recordSince(start);
             }
-            entry.ttl = entry.softTtl = ttl;
-            entry.data = parcel.marshall();
-            return putEntry(key, entry);
-        } finally {
-            parcel.recycle();
         }
     }
 
     /**
-     * Removes the specified key from the cache if it exists.
+     * Evicts entries of a region in the order of its policy, until either the region
+     * fits its quota or the cache has room again. Must be called with the prune lock
+     * held.
+     *
+     * @param regionNeededSpace The amount of bytes that must fit in the quota.
+     * @param neededSpace       The amount of bytes that must fit in the cache.
      */
-    @Override
-    public synchronized void remove(final String key) {
-        final boolean deleted = getFileForKey(key).delete();
-        removeEntry(key);
-        if (!deleted) {
-            Log.d(TAG, String.format("Could not delete cache entry for key=%s, filename=%s", key, getFilenameForKey(key)));
+    private void evictFromRegion(final CacheRegion region, final long regionNeededSpace, final long neededSpace) {
+        for (final Iterator<String> i = region.evictionOrder(); i.hasNext(); ) {
+            if (region.getSize() + regionNeededSpace <= region.getQuotaInBytes()
+                || (currentSize() + neededSpace) < this.mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
+                return;
+            }
+            evictEntry(i.next(), region);
         }
     }
 
-    protected synchronized Entry getEntry(final String key) {
-        final CacheHeader entry = this.mEntries.get(key);
-        if (entry == null) {
-            return null;
+    /**
+     * Evicts the entry of a key returned by an eviction order. An entry whose stripe is
+     * busy is skipped.
+     *
+     * @param from The region whose policy returned the key, or null if the cache policy
+     *             did.
+     */
+    private void evictEntry(final String key, final CacheRegion from) {
+        final Lock lock = lockFor(key).writeLock();
+        if (!lock.tryLock()) {
+            return;
         }
 
-        final File file = getFileForKey(key);
-        CountingInputStream cis = null;
-
         try {
-            cis = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
-            CacheHeader.readHeader(cis); // eat header
-            final byte[] data = streamToBytes(cis, (int) (file.length() - cis.mBytesRead));
-            return entry.toCacheEntry(data);
-        } catch (final IOException e) {
-            remove(key);
-            return null;
-        } catch (final NegativeArraySizeException e) {
-            remove(key);
-            return null;
-        } finally {
-            if (cis != null) {
-                try {
-                    cis.close();
-                } catch (IOException ioe) {
-                    return null;
+            final CacheRegion region = from != null ? from : regionOf(key);
+            final CacheHeader e = this.mEntries.remove(key);
+            if (e == null) {
+                this.mPolicy.onRemove(key);
+                if (region != null) {
+                    region.onRemoved(key, 0, false);
                 }
+                return;
             }
-        }
-    }
-
-    protected synchronized boolean putEntry(final String key, final Entry entry) {
-        pruneIfNeeded(entry.data.length);
-        final File file = getFileForKey(key);
-
-        BufferedOutputStream fos = null;
 
-        try {
-            fos = new BufferedOutputStream(new FileOutputStream(file));
-            final CacheHeader e = new CacheHeader(key, entry);
-            if (!e.writeHeader(fos)) {
-                fos.close();
-                Log.d(TAG, String.format("Failed to write header for %s", file.getAbsolutePath()));
-                throw new IOException();
+            final boolean deleted = getFileForKey(e.mKey).delete();
+            this.mTotalSize.addAndGet(-e.mSize);
+            this.mExpiryIndex.remove(e);
+            unindexKey(e);
+            if (from == null) {
+                this.mPolicy.onEvict(key);
+            } else {
+                this.mPolicy.onRemove(key);
             }
-
-            fos.write(entry.data);
-            fos.close();
-            putEntry(key, e);
-            return true;
-        } catch (final IOException e) {
-            if (!file.delete()) {
-                Log.d(TAG, String.format("Could not clean up file %s", file.getAbsolutePath()));
+            if (region != null) {
+                region.onRemoved(key, e.mSize, from != null);
+                region.recordEviction();
             }
-            return false;
-        } finally {
-            if (null != fos) {
-                try {
-                    fos.close();
-                } catch (final IOException e) {
-                    e.printStackTrace();
-                }
-                fos = null;
+            if (this.mShared != null) {
+                this.mShared.remove(key);
             }
+            this.mJournal.remove(e.mKey);
+            this.mStats.recordEviction();
+            if (!deleted) {
+                Log.d(TAG, String.format("Could not delete cache entry for key=%s, filename=%s", e.mKey, getFilenameForKey(e.mKey)));
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     /**
-     * Creates a pseudo-unique filename for the specified cache key.
+     * Puts the entry with the specified key into the cache. Must be called with the
+     * key's stripe write lock held.
      *
-     * @param key The key to generate a file name for.
-     * @return A pseudo-unique filename.
+     * @param key   The key to identify the entry by.
+     * @param entry The entry to cache.
      */
-    private String getFilenameForKey(final String key) {
-        final int firstHalfLength = key.length() / 2;
-        String localFilename = String.valueOf(key.substring(0, firstHalfLength).hashCode());
-        localFilename += String.valueOf(key.substring(firstHalfLength).hashCode());
-        return localFilename;
+    private void putEntry(final String key, CacheHeader entry) {
+        if (this.mShared != null) {
+            entry.mVersion = this.mShared.put(key, entry.mSize);
+        }
+        indexLocally(key, entry);
+
+        this.mJournal.put(entry);
+        compactJournalIfNeeded();
     }
 
     /**
-     * Returns a file object for the given cache key.
+     * Adds or replaces the entry in the in-memory index only.
      */
-    public File getFileForKey(final String key) {
-        return new File(this.mRootDirectory, getFilenameForKey(key));
+    private void indexLocally(final String key, final CacheHeader entry) {
+        final CacheHeader oldEntry = this.mEntries.put(key, entry);
+        final long delta = oldEntry == null ? entry.mSize : entry.mSize - oldEntry.mSize;
+        this.mTotalSize.addAndGet(delta);
+        if (oldEntry != null) {
+            this.mExpiryIndex.remove(oldEntry);
+        }
+        this.mExpiryIndex.add(entry);
+        indexKey(entry, oldEntry);
+
+        this.mPolicy.onPut(key, entry.mSize);
+        final CacheRegion region = regionOf(key);
+        if (region != null) {
+            region.onIndexed(key, entry.mSize, delta);
+        }
     }
 
     /**
-     * Prunes the cache to fit the amount of bytes specified.
-     *
-     * @param neededSpace The amount of bytes we are trying to fit into the cache.
+     * Rewrites the journal once redundant records outnumber the live entries.
      */
-    private void pruneIfNeeded(final long neededSpace) {
-        if ((this.mTotalSize + neededSpace) < this.mMaxCacheSizeInBytes) {
+    private void compactJournalIfNeeded() {
+        if (!this.mJournal.needsCompaction(this.mEntries.size())) {
             return;
         }
 
-        for (final Iterator<Map.Entry<String, CacheHeader>> i = this.mEntries.entrySet().iterator(); i.hasNext(); ) {
-            final Map.Entry<String, CacheHeader> entry = i.next();
-            final CacheHeader e = entry.getValue();
-            final boolean deleted = getFileForKey(e.mKey).delete();
-            if (deleted) {
-                this.mTotalSize -= e.mSize;
-            } else {
-                Log.d(TAG, String.format("Could not delete cache entry for key=%s, filename=%s", e.mKey, getFilenameForKey(e.mKey)));
+        // snapshot under the journal lock, so no record appended after it is dropped
+        synchronized (this.mJournal) {
+            if (this.mJournal.needsCompaction(this.mEntries.size())) {
+                this.mJournal.rebuild(snapshotEntries());
             }
+        }
+    }
 
-            i.remove();
+    /**
+     * Removes the entry identified by 'key' from the cache.
+     */
+    private void removeEntry(final String key) {
+        if (this.mShared != null) {
+            // the entry may have been put by another process only
+            this.mShared.remove(key);
+        }
 
-            if ((this.mTotalSize + neededSpace) < this.mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
-                break;
-            }
+        if (unindexEntry(key) != null) {
+            this.mJournal.remove(key);
+            compactJournalIfNeeded();
         }
     }
 
     /**
-     * Puts the entry with the specified key into the cache.
+     * Removes the entry from the in-memory index only.
      *
-     * @param key   The key to identify the entry by.
-     * @param entry The entry to cache.
+     * @return The removed header, or null if the key was not indexed.
      */
-    private void putEntry(final String key, CacheHeader entry) {
-        if (!this.mEntries.containsKey(key)) {
-            this.mTotalSize += entry.mSize;
-        } else {
-            final CacheHeader oldEntry = this.mEntries.get(key);
-            this.mTotalSize += (entry.mSize - oldEntry.mSize);
+    private CacheHeader unindexEntry(final String key) {
+        final CacheHeader entry = this.mEntries.remove(key);
+        if (entry != null) {
+            this.mTotalSize.addAndGet(-entry.mSize);
+            this.mExpiryIndex.remove(entry);
+            unindexKey(entry);
+            this.mPolicy.onRemove(key);
+            final CacheRegion region = regionOf(key);
+            if (region != null) {
+                region.onRemoved(key, entry.mSize, false);
+            }
         }
+        return entry;
+    }
 
-        this.mEntries.put(key, entry);
+    /**
+     * Adds an indexed entry to the key and tag indexes.
+     *
+     * @param oldEntry The entry it replaces, or null.
+     */
+    private void indexKey(final CacheHeader entry, final CacheHeader oldEntry) {
+        if (oldEntry != null) {
+            for (final String tag : oldEntry.mTags) {
+                if (!entry.mTags.contains(tag)) {
+                    untag(tag, entry.mKey);
+                }
+            }
+        }
+        this.mKeys.add(entry.mKey);
+
+        for (final String tag : entry.mTags) {
+            while (true) {
+                Set<String> keys = this.mTagIndex.get(tag);
+                if (keys == null) {
+                    final Set<String> created = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+                    keys = this.mTagIndex.putIfAbsent(tag, created);
+                    if (keys == null) {
+                        keys = created;
+                    }
+                }
+                keys.add(entry.mKey);
+                // the set may have been dropped as empty before the key was added
+                if (this.mTagIndex.get(tag) == keys) {
+                    break;
+                }
+            }
+        }
     }
 
     /**
-     * Removes the entry identified by 'key' from the cache.
+     * Removes an entry that left the index from the key and tag indexes.
      */
-    private void removeEntry(final String key) {
-        final CacheHeader entry = this.mEntries.get(key);
-        if (entry != null) {
-            this.mTotalSize -= entry.mSize;
-            this.mEntries.remove(key);
+    private void unindexKey(final CacheHeader entry) {
+        this.mKeys.remove(entry.mKey);
+        for (final String tag : entry.mTags) {
+            untag(tag, entry.mKey);
+        }
+    }
+
+    private void untag(final String tag, final String key) {
+        final Set<String> keys = this.mTagIndex.get(tag);
+        if (keys != null && keys.remove(key) && keys.isEmpty()) {
+            this.mTagIndex.remove(tag, keys);
         }
     }
 
+    /**
+     * Returns the total size of the entries indexed by this process in bytes.
+     */
+    // Visible for testing.
+    long getTotalSize() {
+        return this.mTotalSize.get();
+    }
+
+    /**
+     * Returns the size of the cache in bytes, including the entries of other processes
+     * in multi-process mode.
+     */
+    private long currentSize() {
+        final long shared = this.mShared == null ? -1 : this.mShared.totalSize();
+        return shared >= 0 ? shared : this.mTotalSize.get();
+    }
+
     /**
      * Handles holding onto the cache headers for an entry.
      */
@@ -530,7 +3190,29 @@ class DiskCache implements Cache {
          */
         public Map<String, String> mResponseHeaders;
 
-        private CacheHeader() {
+        /**
+         * Tags the entry can be invalidated by.
+         */
+        public Set<String> mTags = Collections.emptySet();
+
+        /**
+         * Format flags of the entry, describing how the data is encoded.
+         */
+        public int mFlags;
+
+        /**
+         * Offset of the data in the cache file, i.e. the length of the header. (This is
+         * not serialized to the cache file.)
+         */
+        public long mBodyOffset;
+
+        /**
+         * Version of the entry in the shared index of a multi-process cache. (This is
+         * not serialized to the cache file.)
+         */
+        public long mVersion;
+
+        CacheHeader() {
         }
 
         /**
@@ -548,6 +3230,8 @@ class DiskCache implements Cache {
             this.mTtl = entry.ttl;
             this.mSoftTtl = entry.softTtl;
             this.mResponseHeaders = entry.responseHeaders;
+            this.mTags = entry.tags == null ? Collections.<String>emptySet() : entry.tags;
+            this.mFlags = (entry.valueCodec << FLAG_VALUE_CODEC_SHIFT) & FLAG_VALUE_CODEC_MASK;
         }
 
         /**
@@ -557,13 +3241,58 @@ class DiskCache implements Cache {
          * @throws IOException
          */
         public static CacheHeader readHeader(final InputStream is) throws IOException {
-            final CacheHeader entry = new CacheHeader();
             final int magic = readInt(is);
+            if (magic == CACHE_MAGIC_V1) {
+                return readHeaderV1(is);
+            }
             if (magic != CACHE_MAGIC) {
                 // don't bother deleting, it'll get pruned eventually
                 throw new IOException();
             }
 
+            final CacheHeader entry = new CacheHeader();
+            ByteBuffer buffer = headerBuffer(HEADER_FIXED_LENGTH);
+            readFully(is, buffer, HEADER_FIXED_LENGTH);
+            entry.mFlags = buffer.get() & 0xff;
+            entry.mServerDate = buffer.getLong();
+            entry.mLastModified = buffer.getLong();
+            entry.mTtl = buffer.getLong();
+            entry.mSoftTtl = buffer.getLong();
+
+            final int length = readVarint(is);
+            if (length < 0 || length > MAX_HEADER_LENGTH) {
+                throw new IOException("Bad header length " + length);
+            }
+
+            buffer = headerBuffer(length);
+            readFully(is, buffer, length);
+            entry.mKey = getString(buffer);
+            final String etag = getString(buffer);
+            entry.mEtag = etag.length() == 0 ? null : etag;
+
+            final int size = getVarint(buffer);
+            final Map<String, String> headers = (size == 0) ? Collections.<String, String>emptyMap() : new HashMap<String, String>(size);
+            for (int i = 0; i < size; i++) {
+                headers.put(getString(buffer).intern(), getString(buffer).intern());
+            }
+            entry.mResponseHeaders = headers;
+
+            // tags follow the response headers, older headers end without them
+            if (buffer.hasRemaining()) {
+                final int tags = getVarint(buffer);
+                entry.mTags = new HashSet<String>(tags * 2);
+                for (int i = 0; i < tags; i++) {
+                    entry.mTags.add(getString(buffer).intern());
+                }
+            }
+            return entry;
+        }
+
+        /**
+         * Reads the rest of a version 1 header, whose magic number has been consumed.
+         */
+        private static CacheHeader readHeaderV1(final InputStream is) throws IOException {
+            final CacheHeader entry = new CacheHeader();
             entry.mKey = readString(is);
             entry.mEtag = readString(is);
             if (entry.mEtag.equals("")) {
@@ -577,6 +3306,26 @@ class DiskCache implements Cache {
             return entry;
         }
 
+        /**
+         * Returns a copy of this header; the response headers and tags are shared.
+         */
+        CacheHeader copy() {
+            final CacheHeader header = new CacheHeader();
+            header.mSize = this.mSize;
+            header.mKey = this.mKey;
+            header.mEtag = this.mEtag;
+            header.mServerDate = this.mServerDate;
+            header.mLastModified = this.mLastModified;
+            header.mTtl = this.mTtl;
+            header.mSoftTtl = this.mSoftTtl;
+            header.mResponseHeaders = this.mResponseHeaders;
+            header.mTags = this.mTags;
+            header.mFlags = this.mFlags;
+            header.mBodyOffset = this.mBodyOffset;
+            header.mVersion = this.mVersion;
+            return header;
+        }
+
         /**
          * Creates a cache entry for the specified data.
          */
@@ -589,23 +3338,66 @@ class DiskCache implements Cache {
             e.ttl = this.mTtl;
             e.softTtl = this.mSoftTtl;
             e.responseHeaders = this.mResponseHeaders;
+            e.tags = this.mTags;
+            e.valueCodec = (this.mFlags & FLAG_VALUE_CODEC_MASK) >>> FLAG_VALUE_CODEC_SHIFT;
             return e;
         }
 
 
         /**
-         * Writes the contents of this CacheHeader to the specified OutputStream.
+         * Writes the contents of this CacheHeader to the specified OutputStream in the
+         * current format, with a single write of the encoded header.
          */
         public boolean writeHeader(final OutputStream os) {
             try {
-                writeInt(os, CACHE_MAGIC);
-                writeString(os, mKey);
-                writeString(os, mEtag == null ? "" : mEtag);
-                writeLong(os, mServerDate);
-                writeLong(os, mLastModified);
-                writeLong(os, mTtl);
-                writeLong(os, mSoftTtl);
-                writeStringStringMap(mResponseHeaders, os);
+                final byte[] key = mKey.getBytes("UTF-8");
+                final byte[] etag = (mEtag == null ? "" : mEtag).getBytes("UTF-8");
+                final Map<String, String> headers = mResponseHeaders == null ? Collections.<String, String>emptyMap() : mResponseHeaders;
+                final byte[][] pairs = new byte[headers.size() * 2][];
+
+                int length = varintSize(key.length) + key.length + varintSize(etag.length) + etag.length + varintSize(headers.size());
+                int i = 0;
+                for (final Map.Entry<String, String> header : headers.entrySet()) {
+                    pairs[i] = header.getKey().getBytes("UTF-8");
+                    pairs[i + 1] = header.getValue().getBytes("UTF-8");
+                    length += varintSize(pairs[i].length) + pairs[i].length + varintSize(pairs[i + 1].length) + pairs[i + 1].length;
+                    i += 2;
+                }
+
+                final Set<String> tagSet = mTags == null ? Collections.<String>emptySet() : mTags;
+                final byte[][] tags = new byte[tagSet.size()][];
+                if (tags.length > 0) {
+                    length += varintSize(tags.length);
+                    i = 0;
+                    for (final String tag : tagSet) {
+                        tags[i] = tag.getBytes("UTF-8");
+                        length += varintSize(tags[i].length) + tags[i].length;
+                        i++;
+                    }
+                }
+
+                final ByteBuffer buffer = headerBuffer(4 + HEADER_FIXED_LENGTH + varintSize(length) + length);
+                buffer.putInt(CACHE_MAGIC);
+                buffer.put((byte) mFlags);
+                buffer.putLong(mServerDate);
+                buffer.putLong(mLastModified);
+                buffer.putLong(mTtl);
+                buffer.putLong(mSoftTtl);
+                putVarint(buffer, length);
+                putBytes(buffer, key);
+                putBytes(buffer, etag);
+                putVarint(buffer, headers.size());
+                for (final byte[] pair : pairs) {
+                    putBytes(buffer, pair);
+                }
+                if (tags.length > 0) {
+                    putVarint(buffer, tags.length);
+                    for (final byte[] tag : tags) {
+                        putBytes(buffer, tag);
+                    }
+                }
+
+                os.write(buffer.array(), 0, buffer.position());
                 os.flush();
                 return true;
             } catch (final IOException e) {
@@ -616,6 +3408,97 @@ class DiskCache implements Cache {
 
     }
 
+    /**
+     * Streams the data of an entry into a temporary file, published on commit.
+     */
+    private final class DiskEditor implements Editor {
+
+        private final String mKey;
+
+        private final CacheHeader mHeader = new CacheHeader();
+
+        private final File mTmpFile;
+
+        private OutputStream mOut;
+
+        private boolean mDone = false;
+
+        private DiskEditor(final String key, final long ttl, final File tmpFile) {
+            this.mKey = key;
+            this.mTmpFile = tmpFile;
+            this.mHeader.mKey = key;
+            this.mHeader.mTtl = this.mHeader.mSoftTtl = expiryFor(ttl);
+            this.mHeader.mResponseHeaders = Collections.emptyMap();
+            this.mHeader.mFlags = BytesValueCodec.ID << FLAG_VALUE_CODEC_SHIFT;
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            if (this.mDone) {
+                throw new IllegalStateException("Editor is already committed or aborted");
+            }
+
+            if (this.mOut == null) {
+                final ByteArrayOutputStream header = new ByteArrayOutputStream(256);
+                if (!this.mHeader.writeHeader(header)) {
+                    throw new IOException("Failed to write header for " + this.mTmpFile.getAbsolutePath());
+                }
+
+                this.mOut = new BufferedOutputStream(new FileOutputStream(this.mTmpFile));
+                header.writeTo(this.mOut);
+                this.mHeader.mBodyOffset = header.size();
+            }
+
+            return this.mOut;
+        }
+
+        @Override
+        public boolean commit() {
+            if (this.mDone) {
+                return false;
+            }
+
+            try {
+                getOutputStream().close();
+            } catch (final IOException e) {
+                abort();
+                return false;
+            }
+
+            this.mDone = true;
+            // a put staged before this edit must not overwrite it later; unstaged under
+            // the stripe lock like everywhere else, see flush()
+            final Lock lock = lockFor(this.mKey).writeLock();
+            lock.lock();
+            try {
+                unstage(this.mKey);
+            } finally {
+                lock.unlock();
+            }
+            if (this.mTmpFile.length() > DiskCache.this.mMaxCacheSizeInBytes) {
+                Log.d(TAG, String.format("Not admitting key=%s, %d bytes", this.mKey, this.mTmpFile.length()));
+                this.mTmpFile.delete();
+                remove(this.mKey);
+                return false;
+            }
+            pruneRegionIfNeeded(this.mKey, this.mTmpFile.length());
+            pruneIfNeeded(this.mTmpFile.length());
+            DiskCache.this.mStats.recordBytesWritten(this.mTmpFile.length());
+            return publish(this.mKey, this.mHeader, this.mTmpFile);
+        }
+
+        @Override
+        public void abort() {
+            if (this.mDone) {
+                return;
+            }
+
+            this.mDone = true;
+            Streams.closeQuietly(this.mOut);
+            this.mTmpFile.delete();
+        }
+    }
+
     private static class CountingInputStream extends FilterInputStream {
 
         private int mBytesRead = 0;
@@ -0,0 +1,45 @@
+package com.wuzp.storagelib;
+
+import java.util.Iterator;
+
+/**
+ * Decides which entries a cache evicts when it needs space. The cache reports every
+ * change to its index; implementations must be thread-safe, as reads are reported
+ * concurrently.
+ */
+interface EvictionPolicy {
+
+    /**
+     * Called when an entry is added or replaced.
+     *
+     * @param key  Cache key
+     * @param size The size of the entry in bytes.
+     */
+    void onPut(final String key, final long size);
+
+    /**
+     * Called when an entry is read.
+     */
+    void onAccess(final String key);
+
+    /**
+     * Called when an entry is removed by the user or found to be gone.
+     */
+    void onRemove(final String key);
+
+    /**
+     * Called when an entry returned by {@link #evictionOrder()} has been evicted.
+     */
+    void onEvict(final String key);
+
+    /**
+     * Returns the keys from the first to the last to evict. The cache may skip keys,
+     * and stops iterating once it has freed enough space.
+     */
+    Iterator<String> evictionOrder();
+
+    /**
+     * Forgets every entry.
+     */
+    void clear();
+}
@@ -0,0 +1,45 @@
+package com.wuzp.storagelib;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Evicts entries in the order they were written, regardless of reads. Rewriting an
+ * entry moves it to the back of the queue.
+ */
+class FifoPolicy implements EvictionPolicy {
+
+    private final Map<String, Long> mEntries = new LinkedHashMap<String, Long>();
+
+    @Override
+    public synchronized void onPut(final String key, final long size) {
+        this.mEntries.remove(key);
+        this.mEntries.put(key, size);
+    }
+
+    @Override
+    public void onAccess(final String key) {
+    }
+
+    @Override
+    public synchronized void onRemove(final String key) {
+        this.mEntries.remove(key);
+    }
+
+    @Override
+    public synchronized void onEvict(final String key) {
+        this.mEntries.remove(key);
+    }
+
+    @Override
+    public synchronized Iterator<String> evictionOrder() {
+        return new ArrayList<String>(this.mEntries.keySet()).iterator();
+    }
+
+    @Override
+    public synchronized void clear() {
+        this.mEntries.clear();
+    }
+}
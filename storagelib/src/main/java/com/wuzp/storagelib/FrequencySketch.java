@@ -0,0 +1,127 @@
+package com.wuzp.storagelib;
+
+/**
+ * Count-Min sketch with 4-bit counters estimating how often keys were seen. Once the
+ * number of increments reaches ten times the table size, every counter is halved, so
+ * that the estimates favor recent popularity.
+ */
+class FrequencySketch {
+
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private static final int MAXIMUM_CAPACITY = 1 << 22;
+
+    /**
+     * Each long packs sixteen 4-bit counters.
+     */
+    private long[] mTable;
+
+    private int mSampleSize;
+
+    private int mSize;
+
+    FrequencySketch(final int expectedEntries) {
+        ensureCapacity(expectedEntries);
+    }
+
+    /**
+     * Grows the table to track the expected number of distinct entries. Growing keeps
+     * the counts gathered so far: the table only grows by powers of two, so the index
+     * of a key in the larger table is its index in the smaller one plus a multiple of
+     * the smaller length, and the old table is copied to each of those positions.
+     */
+    void ensureCapacity(final int expectedEntries) {
+        final int capacity = Math.min(Math.max(16, Integer.highestOneBit(Math.max(1, expectedEntries) - 1) << 1), MAXIMUM_CAPACITY);
+        if (this.mTable != null && this.mTable.length >= capacity) {
+            return;
+        }
+
+        final long[] table = new long[capacity];
+        if (this.mTable != null) {
+            for (int i = 0; i < capacity; i += this.mTable.length) {
+                System.arraycopy(this.mTable, 0, table, i, this.mTable.length);
+            }
+        }
+        this.mTable = table;
+        this.mSampleSize = 10 * capacity;
+    }
+
+    /**
+     * Returns the number of distinct entries the table is sized for.
+     */
+    int capacity() {
+        return this.mTable.length;
+    }
+
+    /**
+     * Returns the estimated number of occurrences of the key, at most 15.
+     */
+    int frequency(final Object key) {
+        final int hash = spread(key.hashCode());
+        int frequency = Integer.MAX_VALUE;
+        for (int i = 0; i < SEEDS.length; i++) {
+            final int index = indexOf(hash, i);
+            final int offset = counterOffset(hash, i);
+            frequency = Math.min(frequency, (int) ((this.mTable[index] >>> offset) & 0xfL));
+        }
+        return frequency;
+    }
+
+    /**
+     * Records an occurrence of the key.
+     */
+    void increment(final Object key) {
+        final int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int i = 0; i < SEEDS.length; i++) {
+            added |= incrementAt(indexOf(hash, i), counterOffset(hash, i));
+        }
+
+        if (added && ++this.mSize >= this.mSampleSize) {
+            reset();
+        }
+    }
+
+    private boolean incrementAt(final int index, final int offset) {
+        final long mask = 0xfL << offset;
+        if ((this.mTable[index] & mask) != mask) {
+            this.mTable[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Halves every counter.
+     */
+    private void reset() {
+        for (int i = 0; i < this.mTable.length; i++) {
+            this.mTable[i] = (this.mTable[i] >>> 1) & RESET_MASK;
+        }
+        this.mSize /= 2;
+    }
+
+    private int indexOf(final int hash, final int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & (this.mTable.length - 1);
+    }
+
+    /**
+     * Picks one of four groups of four counters in the word, and the i-th counter of
+     * that group.
+     */
+    private static int counterOffset(final int hash, final int i) {
+        return (((hash & 3) << 2) + i) << 2;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
@@ -0,0 +1,120 @@
+package com.wuzp.storagelib;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Greedy-Dual-Size-Frequency: evicts the entry with the lowest priority
+ * {@code L + frequency / size}, where L is the priority of the last evicted entry.
+ * Small and frequently read entries are kept over large or rarely read ones, and
+ * the inflation of L ages out entries that stopped being read.
+ */
+class GdsfPolicy implements EvictionPolicy {
+
+    private final Map<String, Node> mEntries = new HashMap<String, Node>();
+
+    private final TreeSet<Node> mQueue = new TreeSet<Node>();
+
+    /**
+     * The inflation value L.
+     */
+    private double mInflation = 0;
+
+    private long mSequence = 0;
+
+    @Override
+    public synchronized void onPut(final String key, final long size) {
+        Node node = this.mEntries.get(key);
+        if (node == null) {
+            node = new Node(key);
+            this.mEntries.put(key, node);
+        } else {
+            this.mQueue.remove(node);
+        }
+
+        node.mSize = Math.max(1, size);
+        node.mFrequency++;
+        update(node);
+    }
+
+    @Override
+    public synchronized void onAccess(final String key) {
+        final Node node = this.mEntries.get(key);
+        if (node != null) {
+            this.mQueue.remove(node);
+            node.mFrequency++;
+            update(node);
+        }
+    }
+
+    @Override
+    public synchronized void onRemove(final String key) {
+        final Node node = this.mEntries.remove(key);
+        if (node != null) {
+            this.mQueue.remove(node);
+        }
+    }
+
+    @Override
+    public synchronized void onEvict(final String key) {
+        final Node node = this.mEntries.remove(key);
+        if (node != null) {
+            this.mQueue.remove(node);
+            this.mInflation = Math.max(this.mInflation, node.mPriority);
+        }
+    }
+
+    @Override
+    public synchronized Iterator<String> evictionOrder() {
+        final List<String> keys = new ArrayList<String>(this.mQueue.size());
+        for (final Node node : this.mQueue) {
+            keys.add(node.mKey);
+        }
+        return keys.iterator();
+    }
+
+    @Override
+    public synchronized void clear() {
+        this.mEntries.clear();
+        this.mQueue.clear();
+        this.mInflation = 0;
+    }
+
+    private void update(final Node node) {
+        node.mPriority = this.mInflation + (double) node.mFrequency / node.mSize;
+        node.mSequence = this.mSequence++;
+        this.mQueue.add(node);
+    }
+
+    private static final class Node implements Comparable<Node> {
+
+        final String mKey;
+
+        long mSize;
+
+        long mFrequency;
+
+        double mPriority;
+
+        /**
+         * Breaks ties between equal priorities in favor of the older entry.
+         */
+        long mSequence;
+
+        Node(final String key) {
+            this.mKey = key;
+        }
+
+        @Override
+        public int compareTo(final Node other) {
+            if (this.mPriority != other.mPriority) {
+                return this.mPriority < other.mPriority ? -1 : 1;
+            }
+            return this.mSequence < other.mSequence ? -1 : (this.mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+}
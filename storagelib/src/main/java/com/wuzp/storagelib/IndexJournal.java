@@ -0,0 +1,405 @@
+package com.wuzp.storagelib;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.wuzp.storagelib.DiskCache.CacheHeader;
+
+/**
+ * Append-only journal of the {@link DiskCache} index. Every put, remove and read is
+ * recorded, so that the index, including its access order, can be rebuilt at startup
+ * from one sequential read instead of opening every cache file. Reads are buffered
+ * without locking and appended in batches, so cache hits do not contend on the
+ * journal; a read overwritten in the buffer before it is appended is lost, which
+ * only loses recency.
+ * <p>
+ * The journal only holds what the index needs: key, size, body offset, format
+ * flags, TTLs, etag, dates and tags.
+ * Response headers stay in the cache file and are read along with the data.
+ * <p>
+ * A disabled journal records nothing and deletes any journal it finds, for caches
+ * whose directory other processes write to behind its back.
+ */
+class IndexJournal {
+
+    static final String JOURNAL_FILE = "journal";
+
+    static final String JOURNAL_FILE_TMP = "journal.tmp";
+
+    /**
+     * Log tag
+     */
+    private static final String TAG = "IndexJournal";
+
+    /**
+     * Magic number for current version of journal file format.
+     */
+    private static final int JOURNAL_MAGIC = 0x4a524e05;
+
+    private static final byte OP_PUT = 1;
+
+    private static final byte OP_REMOVE = 2;
+
+    private static final byte OP_READ = 3;
+
+    /**
+     * Upper bound on the length of a journaled string, to reject garbage lengths.
+     */
+    private static final int MAX_STRING_LENGTH = 1024 * 1024;
+
+    /**
+     * Minimum number of redundant records before the journal is compacted.
+     */
+    private static final int COMPACT_THRESHOLD = 2000;
+
+    /**
+     * Number of reads buffered before they are appended, a power of two.
+     */
+    private static final int READ_BUFFER_SIZE = 64;
+
+    /**
+     * Keys of the buffered reads, by slot.
+     */
+    private final AtomicReferenceArray<String> mReadBuffer = new AtomicReferenceArray<String>(READ_BUFFER_SIZE);
+
+    /**
+     * Number of reads recorded so far; the next read goes in the slot it points at.
+     */
+    private final AtomicLong mReadCursor = new AtomicLong();
+
+    private final File mFile;
+
+    private final File mTmpFile;
+
+    private final boolean mEnabled;
+
+    private DataOutputStream mOut;
+
+    /**
+     * Number of records that no longer contribute to the replayed index.
+     */
+    private int mRedundantOps = 0;
+
+    IndexJournal(final File directory, final boolean enabled) {
+        this.mFile = new File(directory, JOURNAL_FILE);
+        this.mTmpFile = new File(directory, JOURNAL_FILE_TMP);
+        this.mEnabled = enabled;
+    }
+
+    IndexJournal(final File directory) {
+        this(directory, true);
+    }
+
+    static boolean isJournalFile(final File file) {
+        final String name = file.getName();
+        return JOURNAL_FILE.equals(name) || JOURNAL_FILE_TMP.equals(name);
+    }
+
+    /**
+     * Replays the journal.
+     *
+     * @return The headers of the live entries from least to most recently used, or null
+     * if there is no journal or it fails validation.
+     */
+    synchronized List<CacheHeader> replay() {
+        if (!this.mEnabled || !this.mFile.exists()) {
+            return null;
+        }
+
+        final Map<String, CacheHeader> entries = new LinkedHashMap<String, CacheHeader>();
+        DataInputStream in = null;
+        int ops = 0;
+        boolean truncated = false;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.mFile), 64 * 1024));
+            if (in.readInt() != JOURNAL_MAGIC) {
+                Log.d(TAG, "Journal magic mismatch");
+                return null;
+            }
+
+            while (true) {
+                final int op = in.read();
+                if (op == -1) {
+                    break;
+                }
+
+                try {
+                    if (op == OP_PUT) {
+                        final CacheHeader header = readHeader(in);
+                        entries.remove(header.mKey);
+                        entries.put(header.mKey, header);
+                    } else if (op == OP_REMOVE) {
+                        entries.remove(readString(in));
+                    } else if (op == OP_READ) {
+                        final String key = readString(in);
+                        final CacheHeader header = entries.remove(key);
+                        if (header != null) {
+                            entries.put(key, header);
+                        }
+                    } else {
+                        Log.d(TAG, String.format("Unknown journal op %d", op));
+                        return null;
+                    }
+                } catch (final EOFException e) {
+                    // a torn record at the tail is what a crash mid-append leaves behind
+                    truncated = true;
+                    break;
+                }
+                ops++;
+            }
+        } catch (final IOException e) {
+            Log.d(TAG, String.format("Unable to read journal: %s", e));
+            return null;
+        } finally {
+            Streams.closeQuietly(in);
+        }
+
+        final List<CacheHeader> headers = new ArrayList<CacheHeader>(entries.values());
+        if (truncated) {
+            rebuild(headers);
+        } else {
+            this.mRedundantOps = ops - headers.size();
+        }
+
+        return headers;
+    }
+
+    synchronized void put(final CacheHeader header) {
+        if (!this.mEnabled) {
+            return;
+        }
+
+        try {
+            final DataOutputStream out = writer();
+            out.write(OP_PUT);
+            writeHeader(out, header);
+            out.flush();
+            this.mRedundantOps++;
+        } catch (final IOException e) {
+            fail(e);
+        }
+    }
+
+    synchronized void remove(final String key) {
+        if (!this.mEnabled) {
+            return;
+        }
+
+        try {
+            final DataOutputStream out = writer();
+            out.write(OP_REMOVE);
+            writeString(out, key);
+            out.flush();
+            this.mRedundantOps += 2;
+        } catch (final IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Records an access. Reads are buffered and appended once the buffer fills, and
+     * are not flushed; losing the tail only loses recency.
+     */
+    void read(final String key) {
+        if (!this.mEnabled) {
+            return;
+        }
+
+        final long cursor = this.mReadCursor.getAndIncrement();
+        final int slot = (int) (cursor & (READ_BUFFER_SIZE - 1));
+        this.mReadBuffer.set(slot, key);
+        if (slot == READ_BUFFER_SIZE - 1) {
+            drainReads();
+        }
+    }
+
+    /**
+     * Appends the buffered reads.
+     */
+    synchronized void drainReads() {
+        if (!this.mEnabled) {
+            return;
+        }
+
+        try {
+            DataOutputStream out = null;
+            for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+                final String key = this.mReadBuffer.getAndSet(i, null);
+                if (key == null) {
+                    continue;
+                }
+                if (out == null) {
+                    out = writer();
+                }
+                out.write(OP_READ);
+                writeString(out, key);
+                this.mRedundantOps++;
+            }
+        } catch (final IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * Returns true once the journal holds enough redundant records to be worth
+     * compacting.
+     *
+     * @param liveEntries The number of entries in the index.
+     */
+    synchronized boolean needsCompaction(final int liveEntries) {
+        return this.mRedundantOps >= COMPACT_THRESHOLD && this.mRedundantOps >= liveEntries;
+    }
+
+    /**
+     * Atomically replaces the journal with one put record per live entry.
+     *
+     * @param headers The live entries from least to most recently used.
+     */
+    synchronized void rebuild(final Collection<CacheHeader> headers) {
+        Streams.closeQuietly(this.mOut);
+        this.mOut = null;
+        if (!this.mEnabled) {
+            // a stale journal must not be replayed by a later single-process cache
+            this.mFile.delete();
+            return;
+        }
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.mTmpFile), 64 * 1024));
+            out.writeInt(JOURNAL_MAGIC);
+            for (final CacheHeader header : headers) {
+                out.write(OP_PUT);
+                writeHeader(out, header);
+            }
+            out.close();
+            out = null;
+
+            if (!this.mTmpFile.renameTo(this.mFile)) {
+                throw new IOException("Unable to rename " + this.mTmpFile.getAbsolutePath());
+            }
+            this.mRedundantOps = 0;
+        } catch (final IOException e) {
+            Streams.closeQuietly(out);
+            this.mTmpFile.delete();
+            fail(e);
+        }
+    }
+
+    /**
+     * Truncates the journal to an empty index.
+     */
+    synchronized void reset() {
+        rebuild(Collections.<CacheHeader>emptyList());
+    }
+
+    synchronized void close() {
+        drainReads();
+        Streams.closeQuietly(this.mOut);
+        this.mOut = null;
+    }
+
+    private DataOutputStream writer() throws IOException {
+        if (this.mOut == null) {
+            final boolean exists = this.mFile.exists();
+            this.mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.mFile, true)));
+            if (!exists) {
+                this.mOut.writeInt(JOURNAL_MAGIC);
+            }
+        }
+
+        return this.mOut;
+    }
+
+    /**
+     * A journal that missed a record no longer describes the index; delete it so the
+     * next startup falls back to a full scan.
+     */
+    private void fail(final IOException e) {
+        Log.d(TAG, String.format("Journal write failed, discarding journal: %s", e));
+        Streams.closeQuietly(this.mOut);
+        this.mOut = null;
+        this.mFile.delete();
+    }
+
+    private static void writeHeader(final DataOutputStream out, final CacheHeader header) throws IOException {
+        writeString(out, header.mKey);
+        out.writeLong(header.mSize);
+        out.writeLong(header.mBodyOffset);
+        out.writeByte(header.mFlags);
+        out.writeLong(header.mTtl);
+        out.writeLong(header.mSoftTtl);
+        writeString(out, header.mEtag == null ? "" : header.mEtag);
+        out.writeLong(header.mServerDate);
+        out.writeLong(header.mLastModified);
+        out.writeInt(header.mTags.size());
+        for (final String tag : header.mTags) {
+            writeString(out, tag);
+        }
+    }
+
+    private static CacheHeader readHeader(final DataInputStream in) throws IOException {
+        final CacheHeader header = new CacheHeader();
+        header.mKey = readString(in);
+        header.mSize = in.readLong();
+        header.mBodyOffset = in.readLong();
+        header.mFlags = in.readUnsignedByte();
+        header.mTtl = in.readLong();
+        header.mSoftTtl = in.readLong();
+        header.mEtag = readString(in);
+        if (header.mEtag.equals("")) {
+            header.mEtag = null;
+        }
+        header.mServerDate = in.readLong();
+        header.mLastModified = in.readLong();
+        header.mResponseHeaders = Collections.emptyMap();
+        final int tags = in.readInt();
+        if (tags < 0 || tags > MAX_STRING_LENGTH) {
+            throw new IOException("Bad tag count " + tags);
+        }
+        if (tags > 0) {
+            header.mTags = new HashSet<String>(tags * 2);
+            for (int i = 0; i < tags; i++) {
+                header.mTags.add(readString(in).intern());
+            }
+        }
+        return header;
+    }
+
+    private static void writeString(final DataOutputStream out, final String s) throws IOException {
+        final byte[] b = s.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b, 0, b.length);
+    }
+
+    private static String readString(final DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0 || length > MAX_STRING_LENGTH) {
+            throw new IOException("Bad string length " + length);
+        }
+
+        final byte[] b = new byte[length];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+
+}
@@ -0,0 +1,112 @@
+package com.wuzp.storagelib;
+
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent loads of the same key into a single in-flight load, so that a
+ * popular key missing from the cache is loaded once rather than by every caller.
+ * A failed load is remembered for a short while, during which further loads of the
+ * key fail immediately instead of hammering a failing data source.
+ */
+class LoadCoalescer {
+
+    /**
+     * Default time a failed load is remembered, in milliseconds.
+     */
+    static final long DEFAULT_NEGATIVE_TTL_MILLIS = 1000;
+
+    /**
+     * Log tag
+     */
+    private static final String TAG = "LoadCoalescer";
+
+    /**
+     * Loads in flight by key.
+     */
+    private final ConcurrentMap<String, FutureTask<?>> mInFlight = new ConcurrentHashMap<String, FutureTask<?>>();
+
+    /**
+     * Time until which loads of a key fail without running, by key.
+     */
+    private final ConcurrentMap<String, Long> mFailures = new ConcurrentHashMap<String, Long>();
+
+    private final long mNegativeTtlMillis;
+
+    LoadCoalescer(final long negativeTtlMillis) {
+        this.mNegativeTtlMillis = negativeTtlMillis;
+    }
+
+    LoadCoalescer() {
+        this(DEFAULT_NEGATIVE_TTL_MILLIS);
+    }
+
+    /**
+     * Runs the loader unless a load of the key is already in flight, in which case its
+     * result is awaited instead.
+     *
+     * @param key    Cache key
+     * @param loader Loads the value and stores it in the cache.
+     * @return The loaded value, or null if the load failed now or a moment ago
+     */
+    <T> T load(final String key, final Callable<T> loader) {
+        final Long failedUntil = this.mFailures.get(key);
+        if (failedUntil != null) {
+            if (failedUntil > System.currentTimeMillis()) {
+                return null;
+            }
+            this.mFailures.remove(key, failedUntil);
+        }
+
+        final FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                try {
+                    return loader.call();
+                } catch (final Exception e) {
+                    LoadCoalescer.this.mFailures.put(key, System.currentTimeMillis() + LoadCoalescer.this.mNegativeTtlMillis);
+                    throw e;
+                }
+            }
+        });
+
+        FutureTask<T> flight = (FutureTask<T>) this.mInFlight.putIfAbsent(key, task);
+        if (flight == null) {
+            flight = task;
+            try {
+                task.run();
+            } finally {
+                this.mInFlight.remove(key, task);
+            }
+        }
+
+        try {
+            return flight.get();
+        } catch (final ExecutionException e) {
+            Log.d(TAG, String.format("Failed to load key=%s: %s", key, e.getCause()));
+            return null;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Forgets the failed load of a key, if any, so that the next load runs.
+     */
+    void reset(final String key) {
+        this.mFailures.remove(key);
+    }
+
+    /**
+     * Forgets all failed loads.
+     */
+    void clear() {
+        this.mFailures.clear();
+    }
+}
@@ -0,0 +1,44 @@
+package com.wuzp.storagelib;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Evicts the least recently used entries first.
+ */
+class LruPolicy implements EvictionPolicy {
+
+    private final Map<String, Long> mEntries = new LinkedHashMap<String, Long>(16, .75f, true);
+
+    @Override
+    public synchronized void onPut(final String key, final long size) {
+        this.mEntries.put(key, size);
+    }
+
+    @Override
+    public synchronized void onAccess(final String key) {
+        this.mEntries.get(key);
+    }
+
+    @Override
+    public synchronized void onRemove(final String key) {
+        this.mEntries.remove(key);
+    }
+
+    @Override
+    public synchronized void onEvict(final String key) {
+        this.mEntries.remove(key);
+    }
+
+    @Override
+    public synchronized Iterator<String> evictionOrder() {
+        return new ArrayList<String>(this.mEntries.keySet()).iterator();
+    }
+
+    @Override
+    public synchronized void clear() {
+        this.mEntries.clear();
+    }
+}
@@ -0,0 +1,139 @@
+package com.wuzp.storagelib;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-weighted LRU map of decoded cache values, bounded by a byte budget. Each value
+ * is weighed by the size of its marshalled entry, so the budget tracks what the
+ * value costs on disk rather than an object count.
+ */
+class MemoryCache {
+
+    /**
+     * Map of the Key, Node pairs, in access order.
+     */
+    private final Map<String, Node> mEntries = new LinkedHashMap<String, Node>(16, .75f, true);
+
+    /**
+     * The maximum total weight of the cache in bytes.
+     */
+    private final long mMaxSizeInBytes;
+
+    /**
+     * Total weight of the cached values in bytes.
+     */
+    private long mTotalSize = 0;
+
+    /**
+     * Incremented by every write, so that a value read from a slower tier is not
+     * promoted over a write that raced with the read.
+     */
+    private long mGeneration = 0;
+
+    MemoryCache(final long maxSizeInBytes) {
+        this.mMaxSizeInBytes = maxSizeInBytes;
+    }
+
+    /**
+     * Returns the value cached for the key, or null if it is absent or expired.
+     */
+    synchronized Object get(final String key) {
+        final Node node = this.mEntries.get(key);
+        if (node == null) {
+            return null;
+        }
+
+        if (node.mTtl < System.currentTimeMillis()) {
+            remove(key);
+            return null;
+        }
+
+        return node.mValue;
+    }
+
+    synchronized boolean has(final String key) {
+        return this.mEntries.containsKey(key);
+    }
+
+    /**
+     * Caches the value, evicting the least recently used values to stay within the
+     * budget. Values heavier than the whole budget are not cached.
+     *
+     * @param weight The weight of the value in bytes.
+     * @param ttl    The absolute expiry time of the value.
+     */
+    synchronized void put(final String key, final Object value, final long weight, final long ttl) {
+        remove(key);
+        insert(key, value, weight, ttl);
+    }
+
+    /**
+     * Caches a value read from a slower tier, unless a write happened since
+     * {@link #generation()} was sampled before that read.
+     */
+    synchronized void promote(final String key, final Object value, final long weight, final long ttl,
+                              final long generation) {
+        if (generation == this.mGeneration && !this.mEntries.containsKey(key)) {
+            insert(key, value, weight, ttl);
+        }
+    }
+
+    synchronized long generation() {
+        return this.mGeneration;
+    }
+
+    private void insert(final String key, final Object value, final long weight, final long ttl) {
+        if (value == null || weight > this.mMaxSizeInBytes) {
+            return;
+        }
+
+        for (final Iterator<Node> i = this.mEntries.values().iterator();
+             i.hasNext() && this.mTotalSize + weight > this.mMaxSizeInBytes; ) {
+            this.mTotalSize -= i.next().mWeight;
+            i.remove();
+        }
+
+        this.mEntries.put(key, new Node(value, weight, ttl));
+        this.mTotalSize += weight;
+    }
+
+    synchronized void remove(final String key) {
+        this.mGeneration++;
+        final Node node = this.mEntries.remove(key);
+        if (node != null) {
+            this.mTotalSize -= node.mWeight;
+        }
+    }
+
+    synchronized void clear() {
+        this.mGeneration++;
+        this.mEntries.clear();
+        this.mTotalSize = 0;
+    }
+
+    synchronized long size() {
+        return this.mTotalSize;
+    }
+
+    synchronized long maxSize() {
+        return this.mMaxSizeInBytes;
+    }
+
+    private static final class Node {
+
+        final Object mValue;
+
+        final long mWeight;
+
+        final long mTtl;
+
+        Node(final Object value, final long weight, final long ttl) {
+            this.mValue = value;
+            this.mWeight = weight;
+            this.mTtl = ttl;
+        }
+    }
+
+}
@@ -0,0 +1,144 @@
+package com.wuzp.storagelib;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+/**
+ * Two-tier cache that keeps the encoded bytes of recently used entries off the Java
+ * heap, in the direct memory slabs of a {@link SlabStore}, in front of a
+ * {@link DiskCache}. Only a small slot record per entry lives on the heap, so a large
+ * hot set does not add to garbage collection pauses.
+ * <p>
+ * Writes and promotions follow {@link AbstractTieredCache}. Values are decoded on
+ * every hit, since only bytes are kept.
+ */
+class OffHeapCache extends AbstractTieredCache {
+
+    /**
+     * Default off-heap budget in bytes.
+     */
+    protected static final int DEFAULT_OFF_HEAP_USAGE_BYTES = 32 * 1024 * 1024;
+
+    private final SlabStore mSlabs;
+
+    /**
+     * Constructs an OffHeapCache in front of the given disk cache.
+     *
+     * @param disk                  The disk tier; its own budget bounds the disk usage.
+     * @param offHeapSizeInBytes    The maximum off-heap memory used for entry bytes.
+     */
+    OffHeapCache(final DiskCache disk, final long offHeapSizeInBytes) {
+        super(disk);
+        this.mSlabs = new SlabStore(offHeapSizeInBytes);
+    }
+
+    /**
+     * Constructs an OffHeapCache in front of the given disk cache using the default
+     * off-heap budget of 32MB.
+     */
+    OffHeapCache(final DiskCache disk) {
+        this(disk, DEFAULT_OFF_HEAP_USAGE_BYTES);
+    }
+
+    @Override
+    boolean frontHas(final String key) {
+        return this.mSlabs.has(key);
+    }
+
+    @Override
+    <T> T frontGet(final String key) {
+        final Entry entry = this.mSlabs.get(key);
+        return entry == null ? null : this.mDisk.<T>decode(entry);
+    }
+
+    @Override
+    long frontGeneration() {
+        return this.mSlabs.generation();
+    }
+
+    @Override
+    void frontPromote(final String key, final Entry entry, final Object value, final long generation) {
+        this.mSlabs.promote(key, entry, generation);
+    }
+
+    @Override
+    void frontPut(final String key, final Entry entry, final Object value) {
+        this.mSlabs.put(key, entry);
+    }
+
+    @Override
+    void frontRemove(final String key) {
+        this.mSlabs.remove(key);
+    }
+
+    @Override
+    void frontClear() {
+        this.mSlabs.clear();
+    }
+
+    /**
+     * Serves uncompressed entries held in the slabs without touching the disk; all
+     * other streams are served by the disk tier.
+     */
+    @Override
+    public InputStream openInputStream(final String key) {
+        final Entry entry = this.mSlabs.get(key);
+        if (entry != null && entry.valueCodec == BytesValueCodec.ID) {
+            return new ByteArrayInputStream(entry.data);
+        }
+
+        return this.mDisk.openInputStream(key);
+    }
+
+    /**
+     * Returns the number of reads served from the slabs.
+     */
+    public long getSlabHitCount() {
+        return frontHitCount();
+    }
+
+    /**
+     * Returns the number of reads that had to fall through to disk.
+     */
+    public long getSlabMissCount() {
+        return frontMissCount();
+    }
+
+    /**
+     * Returns the total length of the entries held in the slabs, in bytes.
+     */
+    public long getOffHeapUsedBytes() {
+        return this.mSlabs.usedBytes();
+    }
+
+    /**
+     * Returns the off-heap memory allocated so far, in bytes. It grows up to the
+     * budget and is then kept for reuse.
+     */
+    public long getOffHeapReservedBytes() {
+        return this.mSlabs.reservedBytes();
+    }
+
+    /**
+     * Returns the fraction of the allocated off-heap memory that holds no entry data.
+     */
+    public float getFragmentation() {
+        return this.mSlabs.fragmentation();
+    }
+
+    /**
+     * Returns the fraction of the occupied chunks wasted by rounding entries up to
+     * their size class.
+     */
+    public float getInternalFragmentation() {
+        return this.mSlabs.internalFragmentation();
+    }
+
+    /**
+     * Returns the number of entries evicted from the slabs to make room.
+     */
+    public long getSlabEvictionCount() {
+        return this.mSlabs.evictionCount();
+    }
+
+}
@@ -0,0 +1,48 @@
+package com.wuzp.storagelib;
+
+import android.os.Parcel;
+
+/**
+ * Value codec backed by {@link Parcel#writeValue(Object)}, accepting every type a
+ * Parcel can hold. Entries written before value codecs existed are decoded by it.
+ */
+class ParcelValueCodec implements ValueCodec {
+
+    static final int ID = 0;
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public boolean canEncode(final Object value) {
+        return true;
+    }
+
+    @Override
+    public byte[] encode(final Object value) {
+        final Parcel parcel = Parcel.obtain();
+
+        try {
+            parcel.setDataPosition(0);
+            parcel.writeValue(value);
+            return parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    @Override
+    public Object decode(final byte[] data) {
+        final Parcel parcel = Parcel.obtain();
+
+        try {
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            return parcel.readValue(ParcelValueCodec.class.getClassLoader());
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.wuzp.storagelib;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lossy ring buffer recording reads without locking, in front of a structure that is
+ * not thread-safe. Reads are replayed through {@link #replay(String)} once the buffer
+ * fills, by whichever reader gets the lock; a reader that does not get it moves on.
+ * Every other use of the structure holds the lock, which replays the buffer first, so
+ * the structure sees every read the buffer has not lost. A read overwritten before it
+ * is replayed is lost.
+ */
+abstract class ReadBuffer {
+
+    /**
+     * Number of reads buffered, a power of two.
+     */
+    private static final int BUFFER_SIZE = 128;
+
+    private final AtomicReferenceArray<String> mBuffer = new AtomicReferenceArray<String>(BUFFER_SIZE);
+
+    /**
+     * Number of reads recorded so far; the next read goes in the slot it points at.
+     */
+    private final AtomicLong mCursor = new AtomicLong();
+
+    private final ReentrantLock mLock = new ReentrantLock();
+
+    /**
+     * Applies a buffered read to the structure, with the lock held.
+     */
+    abstract void replay(String key);
+
+    /**
+     * Records a read of the key.
+     */
+    void record(final String key) {
+        final int slot = (int) (this.mCursor.getAndIncrement() & (BUFFER_SIZE - 1));
+        this.mBuffer.set(slot, key);
+        if (slot == BUFFER_SIZE - 1 && this.mLock.tryLock()) {
+            try {
+                drain();
+            } finally {
+                this.mLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Takes the lock, then replays the buffered reads.
+     */
+    void lock() {
+        this.mLock.lock();
+        drain();
+    }
+
+    void unlock() {
+        this.mLock.unlock();
+    }
+
+    /**
+     * Drops the buffered reads. Must be called with the lock held.
+     */
+    void discard() {
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            this.mBuffer.set(i, null);
+        }
+    }
+
+    /**
+     * Replays the buffered reads, oldest slot first. Must be called with the lock held.
+     */
+    private void drain() {
+        final int next = (int) (this.mCursor.get() & (BUFFER_SIZE - 1));
+        for (int i = 0; i < BUFFER_SIZE; i++) {
+            final String key = this.mBuffer.getAndSet((next + i) & (BUFFER_SIZE - 1), null);
+            if (key != null) {
+                replay(key);
+            }
+        }
+    }
+}
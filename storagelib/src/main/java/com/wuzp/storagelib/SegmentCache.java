@@ -0,0 +1,1011 @@
+package com.wuzp.storagelib;
+
+import android.os.Parcel;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+
+import com.wuzp.storagelib.DiskCache.CacheHeader;
+
+/**
+ * Cache implementation that appends entries to a small number of large segment files
+ * in the specified directory instead of writing one file per key. An in-memory index
+ * maps every key onto its record inside a segment; sealed segments are read back
+ * through memory-mapped {@link FileChannel} views.
+ * <p>
+ * Removals and evictions append a tombstone record, and the space they leave behind
+ * is reclaimed by compacting the oldest segment: its live records are copied to the
+ * active segment and the file is deleted.
+ */
+class SegmentCache implements Cache {
+
+    /**
+     * Default maximum disk usage in bytes.
+     */
+    protected static final int DEFAULT_DISK_USAGE_BYTES = DiskCache.DEFAULT_DISK_USAGE_BYTES;
+
+    /**
+     * Default size at which the active segment is sealed and a new one is started.
+     */
+    protected static final int DEFAULT_SEGMENT_SIZE_BYTES = 1024 * 1024;
+
+    /**
+     * Log tag
+     */
+    private static final String TAG = "SegmentCache";
+
+    /**
+     * High water mark percentage for the cache
+     */
+    private static final float HYSTERESIS_FACTOR = 0.9f;
+
+    /**
+     * Magic number that starts every record in a segment.
+     */
+    private static final int RECORD_MAGIC = 0x5e600001;
+
+    private static final byte RECORD_PUT = 1;
+
+    private static final byte RECORD_DELETE = 2;
+
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final String EDIT_PREFIX = "edit-";
+
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    /**
+     * Map of the Key, Record pairs, in access order.
+     */
+    private final Map<String, Record> mEntries = new LinkedHashMap<String, Record>(16, .75f, true);
+
+    /**
+     * Segments ordered by id, the last one being the active segment.
+     */
+    private final TreeMap<Integer, Segment> mSegments = new TreeMap<Integer, Segment>();
+
+    /**
+     * Coalesces concurrent loads; loaders run outside the cache monitor.
+     */
+    private final LoadCoalescer mLoads = new LoadCoalescer();
+
+    private final StatsRecorder mStats = new StatsRecorder();
+
+    /**
+     * The root directory to use for the cache.
+     */
+    private final File mRootDirectory;
+
+    /**
+     * The maximum size of the cache in bytes.
+     */
+    private final long mMaxCacheSizeInBytes;
+
+    /**
+     * The size at which the active segment is sealed.
+     */
+    private final long mSegmentSizeInBytes;
+
+    /**
+     * Total amount of live data referenced by the index in bytes.
+     */
+    private long mTotalSize = 0;
+
+    /**
+     * Total length of all segment files in bytes, including dead records.
+     */
+    private long mDiskSize = 0;
+
+    /**
+     * Constructs an instance of the SegmentCache at the specified directory.
+     *
+     * @param rootDirectory       The root directory of the cache.
+     * @param maxCacheSizeInBytes The maximum size of the cache in bytes.
+     * @param segmentSizeInBytes  The size at which a segment is sealed.
+     */
+    SegmentCache(final File rootDirectory, final long maxCacheSizeInBytes, final long segmentSizeInBytes) {
+        this.mRootDirectory = rootDirectory;
+        this.mMaxCacheSizeInBytes = maxCacheSizeInBytes;
+        this.mSegmentSizeInBytes = segmentSizeInBytes;
+    }
+
+    /**
+     * Constructs an instance of the SegmentCache at the specified directory using
+     * the default maximum cache size of 5MB and 1MB segments.
+     *
+     * @param rootDirectory The root directory of the cache.
+     */
+    SegmentCache(final File rootDirectory) {
+        this(rootDirectory, DEFAULT_DISK_USAGE_BYTES, DEFAULT_SEGMENT_SIZE_BYTES);
+    }
+
+    /**
+     * Clears the cache. Deletes all segment files from disk.
+     */
+    @Override
+    public synchronized void clear() {
+        for (final Segment segment : this.mSegments.values()) {
+            segment.delete();
+        }
+
+        this.mSegments.clear();
+        this.mEntries.clear();
+        this.mTotalSize = 0;
+        this.mDiskSize = 0;
+        this.mLoads.clear();
+        Log.d(TAG, "Cache cleared.");
+    }
+
+    @Override
+    public synchronized boolean has(final String key) {
+        return this.mEntries.containsKey(key);
+    }
+
+    @Override
+    public synchronized <T> T get(final String key) {
+        final long start = System.nanoTime();
+        try {
+            final T value = readValue(key);
+            if (value == null) {
+                this.mStats.recordMiss();
+            } else {
+                this.mStats.recordHit();
+            }
+            return value;
+        } finally {
+            this.mStats.mGet.recordSince(start);
+        }
+    }
+
+    /**
+     * Returns the value of the key, or null if it is absent or expired, without
+     * recording a hit or a miss.
+     */
+    private synchronized <T> T readValue(final String key) {
+        final Entry entry = getEntry(key);
+        if (null == entry || entry.data == null || entry.isExpired()) {
+            return null;
+        }
+
+        return decode(entry);
+    }
+
+    private <T> T decode(final Entry entry) {
+        final long start = System.nanoTime();
+        final Parcel parcel = Parcel.obtain();
+
+        try {
+            parcel.unmarshall(entry.data, 0, entry.data.length);
+            parcel.setDataPosition(0);
+            return (T) parcel.readValue(getClass().getClassLoader());
+        } finally {
+            parcel.recycle();
+            this.mStats.mDecode.recordSince(start);
+        }
+    }
+
+    @Override
+    public <T> T getOrLoad(final String key, final Loader<T> loader, final long ttl) {
+        final T cached = get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        return this.mLoads.load(key, new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                // a load that completed after this caller missed may have stored it already
+                final T stored = readValue(key);
+                if (stored != null) {
+                    return stored;
+                }
+
+                final T value = SegmentCache.this.mStats.load(key, loader);
+                if (value != null) {
+                    put(key, value, ttl);
+                }
+                return value;
+            }
+        });
+    }
+
+    /**
+     * Initializes the SegmentCache by replaying every segment in id order. Creates the
+     * root directory if necessary.
+     */
+    @Override
+    public synchronized void initialize() {
+        final long start = System.nanoTime();
+        try {
+            loadSegments();
+        } finally {
+            this.mStats.mInitialize.recordSince(start);
+        }
+    }
+
+    private void loadSegments() {
+        if (!this.mRootDirectory.exists()) {
+            if (!this.mRootDirectory.mkdirs()) {
+                Log.e(TAG, String.format("Unable to create cache dir %s", this.mRootDirectory.getAbsolutePath()));
+            }
+            return;
+        }
+
+        final File[] files = this.mRootDirectory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File dir, final String name) {
+                if (name.startsWith(EDIT_PREFIX) && name.endsWith(TEMP_FILE_SUFFIX)) {
+                    // left behind by an editor that was never committed
+                    new File(dir, name).delete();
+                    return false;
+                }
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files);
+        for (final File file : files) {
+            final int id;
+            try {
+                id = Integer.parseInt(file.getName().substring(SEGMENT_PREFIX.length(),
+                    file.getName().length() - SEGMENT_SUFFIX.length()));
+            } catch (final NumberFormatException e) {
+                file.delete();
+                continue;
+            }
+
+            try {
+                final Segment segment = new Segment(id, file);
+                replay(segment);
+                this.mSegments.put(id, segment);
+                this.mDiskSize += segment.mLength;
+            } catch (final IOException e) {
+                Log.d(TAG, String.format("Unable to open segment %s", file.getAbsolutePath()));
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Invalidates an entry in the cache.
+     *
+     * @param key        Cache key
+     * @param fullExpire True to fully expire the entry, false to soft expire
+     */
+    @Override
+    public synchronized void invalidate(final String key, final boolean fullExpire) {
+        final Entry entry = getEntry(key);
+        if (entry != null) {
+            entry.softTtl = 0;
+            if (fullExpire) {
+                entry.ttl = 0;
+            }
+            putEntry(key, entry);
+        }
+    }
+
+    /**
+     * Puts the entry with the specified key into the cache.
+     */
+    @Override
+    public synchronized boolean put(final String key, final Object value, final long ttl) {
+        final long start = System.nanoTime();
+        try {
+            return putEntry(key, encode(value, ttl));
+        } finally {
+            this.mStats.mPut.recordSince(start);
+        }
+    }
+
+    @Override
+    public synchronized <T> Map<String, T> getAll(final Collection<String> keys) {
+        final Map<String, T> values = new LinkedHashMap<String, T>();
+        for (final String key : keys) {
+            final T value = get(key);
+            if (value != null) {
+                values.put(key, value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Puts the entries into the cache under a single hold of the monitor. Room is made
+     * for their combined size once, and the records are appended back to back.
+     */
+    @Override
+    public synchronized boolean putAll(final Map<String, ?> values, final long ttl) {
+        final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+        long bytes = 0;
+        for (final Map.Entry<String, ?> e : values.entrySet()) {
+            final Entry entry = encode(e.getValue(), ttl);
+            entries.put(e.getKey(), entry);
+            bytes += entry.data.length;
+        }
+        pruneIfNeeded(bytes);
+
+        boolean stored = true;
+        for (final Map.Entry<String, Entry> e : entries.entrySet()) {
+            stored &= putEntry(e.getKey(), e.getValue());
+        }
+        return stored;
+    }
+
+    private static Entry encode(final Object value, long ttl) {
+        final Entry entry = new Entry();
+        final Parcel parcel = Parcel.obtain();
+
+        try {
+            parcel.setDataPosition(0);
+            parcel.writeValue(value);
+            if (ttl >= (Long.MAX_VALUE >> 1)) {
+                ttl = Long.MAX_VALUE;
+            } else {
+                ttl = BigDecimal.valueOf(ttl)
+                    .add(BigDecimal.valueOf(System.currentTimeMillis())).longValue();
+            }
+            entry.ttl = entry.softTtl = ttl;
+            entry.data = parcel.marshall();
+            return entry;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Removes the specified key from the cache if it exists.
+     */
+    @Override
+    public synchronized void remove(final String key) {
+        if (this.mEntries.containsKey(key)) {
+            removeEntry(key);
+            appendTombstone(key);
+        }
+    }
+
+    @Override
+    public synchronized void removeAll(final Collection<String> keys) {
+        for (final String key : keys) {
+            remove(key);
+        }
+    }
+
+    protected synchronized Entry getEntry(final String key) {
+        final Record record = this.mEntries.get(key);
+        if (record == null) {
+            return null;
+        }
+
+        try {
+            final byte[] data = record.mSegment.read(record.mDataOffset, record.mDataLength);
+            this.mStats.recordBytesRead(data.length);
+            return record.mHeader.toCacheEntry(data);
+        } catch (final IOException e) {
+            remove(key);
+            return null;
+        }
+    }
+
+    protected synchronized boolean putEntry(final String key, final Entry entry) {
+        pruneIfNeeded(entry.data.length);
+
+        final CacheHeader header = new CacheHeader(key, entry);
+
+        try {
+            final byte[] prefix = recordPrefix(header, entry.data.length);
+            final Segment segment = activeSegment();
+            final long offset = segment.append(prefix, entry.data);
+            final long length = prefix.length + entry.data.length;
+            this.mDiskSize += length;
+            this.mStats.recordBytesWritten(length);
+            putRecord(key, new Record(segment, offset, length, offset + prefix.length, entry.data.length, header));
+            compactIfNeeded();
+            return true;
+        } catch (final IOException e) {
+            Log.d(TAG, String.format("Failed to append entry for key=%s", key));
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized InputStream openInputStream(final String key) {
+        final Record record = this.mEntries.get(key);
+        if (record == null || record.mHeader.mTtl < System.currentTimeMillis()) {
+            return null;
+        }
+
+        try {
+            return record.mSegment.openStream(record.mDataOffset, record.mDataLength);
+        } catch (final IOException e) {
+            remove(key);
+            return null;
+        }
+    }
+
+    @Override
+    public Editor edit(final String key, final long ttl) {
+        try {
+            return new SegmentEditor(key, ttl, File.createTempFile(EDIT_PREFIX, TEMP_FILE_SUFFIX, this.mRootDirectory));
+        } catch (final IOException e) {
+            Log.d(TAG, String.format("Could not create editor for key=%s: %s", key, e));
+            return null;
+        }
+    }
+
+    @Override
+    public CacheStats getStats() {
+        return this.mStats.snapshot();
+    }
+
+    /**
+     * Appends the contents of a completely written file as the record of an entry,
+     * copying it into the active segment through the channels.
+     */
+    private synchronized boolean putFile(final CacheHeader header, final File body) {
+        final long length = body.length();
+        if (length > Integer.MAX_VALUE) {
+            return false;
+        }
+
+        pruneIfNeeded(length);
+        header.mSize = length;
+
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(body);
+            final byte[] prefix = recordPrefix(header, (int) length);
+            final Segment segment = activeSegment();
+            final long offset = segment.append(prefix, in.getChannel(), length);
+            this.mDiskSize += prefix.length + length;
+            this.mStats.recordBytesWritten(prefix.length + length);
+            putRecord(header.mKey, new Record(segment, offset, prefix.length + length, offset + prefix.length, (int) length, header));
+            compactIfNeeded();
+            return true;
+        } catch (final IOException e) {
+            Log.d(TAG, String.format("Failed to append entry for key=%s", header.mKey));
+            return false;
+        } finally {
+            Streams.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Encodes everything of a put record that precedes the entry data.
+     */
+    private static byte[] recordPrefix(final CacheHeader header, final int length) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        DiskCache.writeInt(out, RECORD_MAGIC);
+        out.write(RECORD_PUT);
+        if (!header.writeHeader(out)) {
+            throw new IOException();
+        }
+        DiskCache.writeInt(out, length);
+        return out.toByteArray();
+    }
+
+    /**
+     * Replays the records of a segment into the index. A torn tail left by a crash
+     * truncates the segment at the last complete record.
+     */
+    private void replay(final Segment segment) throws IOException {
+        final ByteBuffer buffer = segment.map();
+        final ByteBufferInputStream is = new ByteBufferInputStream(buffer);
+
+        while (buffer.hasRemaining()) {
+            final int start = buffer.position();
+            try {
+                if (DiskCache.readInt(is) != RECORD_MAGIC) {
+                    throw new IOException("Bad record magic");
+                }
+
+                final int type = is.read();
+                if (type == RECORD_PUT) {
+                    final CacheHeader header = CacheHeader.readHeader(is);
+                    final int length = DiskCache.readInt(is);
+                    final int dataOffset = buffer.position();
+                    if (length < 0 || length > buffer.remaining()) {
+                        throw new IOException("Truncated record");
+                    }
+                    buffer.position(dataOffset + length);
+                    header.mSize = length;
+                    putRecord(header.mKey, new Record(segment, start, buffer.position() - start, dataOffset, length, header));
+                } else if (type == RECORD_DELETE) {
+                    removeEntry(DiskCache.readString(is));
+                } else {
+                    throw new IOException("Unknown record type " + type);
+                }
+            } catch (final IOException e) {
+                Log.d(TAG, String.format("Truncating segment %s at %d", segment.mFile.getName(), start));
+                segment.truncate(start);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the segment new records are appended to, sealing the current one and
+     * starting a new segment once it has grown past the segment size.
+     */
+    private Segment activeSegment() throws IOException {
+        Segment segment = this.mSegments.isEmpty() ? null : this.mSegments.lastEntry().getValue();
+        if (segment == null || segment.mLength >= this.mSegmentSizeInBytes) {
+            if (segment != null) {
+                // sealed segments never grow again, map them once for the read path
+                segment.map();
+            }
+            if (!this.mRootDirectory.exists() && !this.mRootDirectory.mkdirs()) {
+                throw new IOException("Unable to create cache dir " + this.mRootDirectory.getAbsolutePath());
+            }
+
+            final int id = segment == null ? 0 : segment.mId + 1;
+            final File file = new File(this.mRootDirectory, String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+            segment = new Segment(id, file);
+            this.mSegments.put(id, segment);
+        }
+
+        return segment;
+    }
+
+    private void appendTombstone(final String key) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(key.length() + 16);
+
+        try {
+            DiskCache.writeInt(out, RECORD_MAGIC);
+            out.write(RECORD_DELETE);
+            DiskCache.writeString(out, key);
+            activeSegment().append(out.toByteArray());
+            this.mDiskSize += out.size();
+        } catch (final IOException e) {
+            Log.d(TAG, String.format("Failed to append tombstone for key=%s", key));
+        }
+    }
+
+    /**
+     * Prunes the cache to fit the amount of bytes specified.
+     *
+     * @param neededSpace The amount of bytes we are trying to fit into the cache.
+     */
+    private void pruneIfNeeded(final long neededSpace) {
+        if ((this.mTotalSize + neededSpace) < this.mMaxCacheSizeInBytes) {
+            return;
+        }
+
+        final long start = System.nanoTime();
+        for (final Iterator<Map.Entry<String, Record>> i = this.mEntries.entrySet().iterator(); i.hasNext(); ) {
+            final Map.Entry<String, Record> entry = i.next();
+            final Record record = entry.getValue();
+            this.mTotalSize -= record.mDataLength;
+            i.remove();
+            appendTombstone(entry.getKey());
+            this.mStats.recordEviction();
+
+            if ((this.mTotalSize + neededSpace) < this.mMaxCacheSizeInBytes * HYSTERESIS_FACTOR) {
+                break;
+            }
+        }
+        this.mStats.mPrune.recordSince(start);
+    }
+
+    /**
+     * Reclaims the space of dead records while the segment files use more than the
+     * maximum cache size. Segments are compacted oldest first, so that every tombstone
+     * they contain only shadows records that are already gone and can be dropped.
+     */
+    private void compactIfNeeded() {
+        int budget = this.mSegments.size() - 1;
+
+        while (this.mDiskSize > this.mMaxCacheSizeInBytes && budget-- > 0) {
+            final Segment oldest = this.mSegments.firstEntry().getValue();
+            if (oldest == this.mSegments.lastEntry().getValue()) {
+                return;
+            }
+
+            try {
+                compact(oldest);
+            } catch (final IOException e) {
+                Log.d(TAG, String.format("Failed to compact segment %s", oldest.mFile.getName()));
+                return;
+            }
+        }
+    }
+
+    private void compact(final Segment segment) throws IOException {
+        for (final Map.Entry<String, Record> entry : this.mEntries.entrySet()) {
+            final Record record = entry.getValue();
+            if (record.mSegment != segment) {
+                continue;
+            }
+
+            final byte[] bytes = segment.read(record.mOffset, (int) record.mRecordLength);
+            final Segment target = activeSegment();
+            final long offset = target.append(bytes);
+            this.mDiskSize += bytes.length;
+            // replace the value in place so the access order is preserved
+            entry.setValue(new Record(target, offset, record.mRecordLength,
+                offset + (record.mDataOffset - record.mOffset), record.mDataLength, record.mHeader));
+        }
+
+        this.mSegments.remove(segment.mId);
+        this.mDiskSize -= segment.mLength;
+        segment.delete();
+    }
+
+    /**
+     * Puts the record with the specified key into the index.
+     */
+    private void putRecord(final String key, final Record record) {
+        final Record oldRecord = this.mEntries.put(key, record);
+        if (oldRecord != null) {
+            this.mTotalSize -= oldRecord.mDataLength;
+        }
+
+        this.mTotalSize += record.mDataLength;
+    }
+
+    /**
+     * Removes the record identified by 'key' from the index.
+     */
+    private void removeEntry(final String key) {
+        final Record record = this.mEntries.remove(key);
+        if (record != null) {
+            this.mTotalSize -= record.mDataLength;
+        }
+    }
+
+    /**
+     * Location of a live record inside a segment.
+     */
+    private static final class Record {
+
+        final Segment mSegment;
+
+        /**
+         * Offset of the record's magic number in the segment.
+         */
+        final long mOffset;
+
+        final long mRecordLength;
+
+        /**
+         * Offset of the entry data in the segment.
+         */
+        final long mDataOffset;
+
+        final int mDataLength;
+
+        final CacheHeader mHeader;
+
+        Record(final Segment segment, final long offset, final long recordLength, final long dataOffset,
+               final int dataLength, final CacheHeader header) {
+            this.mSegment = segment;
+            this.mOffset = offset;
+            this.mRecordLength = recordLength;
+            this.mDataOffset = dataOffset;
+            this.mDataLength = dataLength;
+            this.mHeader = header;
+        }
+    }
+
+    /**
+     * An append-only segment file.
+     */
+    private static final class Segment {
+
+        final int mId;
+
+        final File mFile;
+
+        private final RandomAccessFile mRandomAccessFile;
+
+        private final FileChannel mChannel;
+
+        /**
+         * Read-only view of the segment, valid up to {@link #mMappedLength}.
+         */
+        private MappedByteBuffer mMapped;
+
+        private long mMappedLength;
+
+        long mLength;
+
+        Segment(final int id, final File file) throws IOException {
+            this.mId = id;
+            this.mFile = file;
+            this.mRandomAccessFile = new RandomAccessFile(file, "rw");
+            this.mChannel = this.mRandomAccessFile.getChannel();
+            this.mLength = this.mChannel.size();
+        }
+
+        /**
+         * Appends the chunks at the end of the segment and returns their offset. A
+         * failed append is rolled back, so that it does not leave a torn record
+         * in front of the records appended after it.
+         */
+        long append(final byte[]... chunks) throws IOException {
+            final long offset = this.mLength;
+            long position = offset;
+
+            try {
+                for (final byte[] chunk : chunks) {
+                    position = write(ByteBuffer.wrap(chunk), position);
+                }
+            } catch (final IOException e) {
+                rollback(offset);
+                throw e;
+            }
+
+            this.mLength = position;
+            return offset;
+        }
+
+        /**
+         * Appends the prefix followed by 'count' bytes transferred from the source
+         * channel and returns their offset.
+         */
+        long append(final byte[] prefix, final FileChannel source, final long count) throws IOException {
+            final long offset = this.mLength;
+
+            try {
+                final long position = write(ByteBuffer.wrap(prefix), offset);
+                long transferred = 0;
+                while (transferred < count) {
+                    final long n = this.mChannel.transferFrom(source, position + transferred, count - transferred);
+                    if (n <= 0) {
+                        throw new IOException("Expected " + count + " bytes, transferred " + transferred + " bytes");
+                    }
+                    transferred += n;
+                }
+                this.mLength = position + count;
+            } catch (final IOException e) {
+                rollback(offset);
+                throw e;
+            }
+
+            return offset;
+        }
+
+        private long write(final ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += this.mChannel.write(buffer, position);
+            }
+            return position;
+        }
+
+        private void rollback(final long offset) {
+            try {
+                truncate(offset);
+            } catch (final IOException e) {
+                Log.d(TAG, String.format("Could not roll back segment %s to %d", this.mFile.getName(), offset));
+            }
+        }
+
+        /**
+         * Opens a stream over a region of the segment. Mapped regions stay readable
+         * even if the segment is compacted away while the stream is open.
+         */
+        InputStream openStream(final long offset, final int length) throws IOException {
+            if (offset < 0 || length < 0 || offset + length > this.mLength) {
+                throw new IOException("Record out of bounds");
+            }
+
+            if (offset + length <= this.mMappedLength) {
+                final ByteBuffer view = this.mMapped.duplicate();
+                view.limit((int) (offset + length));
+                view.position((int) offset);
+                return new ByteBufferInputStream(view.slice());
+            }
+
+            return new ChannelInputStream(this.mChannel, offset, offset + length);
+        }
+
+        /**
+         * Maps the whole segment read-only. Segments only grow, so the mapping is
+         * refreshed once it no longer covers the current length.
+         */
+        ByteBuffer map() throws IOException {
+            if (this.mMapped == null || this.mMappedLength < this.mLength) {
+                this.mMapped = this.mChannel.map(FileChannel.MapMode.READ_ONLY, 0, this.mLength);
+                this.mMappedLength = this.mLength;
+            }
+
+            final ByteBuffer view = this.mMapped.duplicate();
+            view.position(0);
+            return view;
+        }
+
+        byte[] read(final long offset, final int length) throws IOException {
+            if (offset < 0 || length < 0 || offset + length > this.mLength) {
+                throw new IOException("Record out of bounds");
+            }
+
+            final byte[] bytes = new byte[length];
+            if (offset + length <= this.mMappedLength) {
+                final ByteBuffer view = this.mMapped.duplicate();
+                view.position((int) offset);
+                view.get(bytes);
+                return bytes;
+            }
+
+            // the active segment has grown past its mapping, read it through the channel
+            final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            long position = offset;
+            while (buffer.hasRemaining()) {
+                final int count = this.mChannel.read(buffer, position);
+                if (count < 0) {
+                    throw new IOException("Expected " + length + " bytes, read " + buffer.position() + " bytes");
+                }
+                position += count;
+            }
+
+            return bytes;
+        }
+
+        void truncate(final long length) throws IOException {
+            this.mMapped = null;
+            this.mMappedLength = 0;
+            this.mChannel.truncate(length);
+            this.mLength = length;
+        }
+
+        void delete() {
+            this.mMapped = null;
+            Streams.closeQuietly(this.mRandomAccessFile);
+            if (!this.mFile.delete()) {
+                Log.d(TAG, String.format("Could not delete segment %s", this.mFile.getAbsolutePath()));
+            }
+        }
+    }
+
+    /**
+     * Streams the data of an entry into a temporary file, appended on commit.
+     */
+    private final class SegmentEditor implements Editor {
+
+        private final CacheHeader mHeader = new CacheHeader();
+
+        private final File mTmpFile;
+
+        private OutputStream mOut;
+
+        private boolean mDone = false;
+
+        private SegmentEditor(final String key, final long ttl, final File tmpFile) {
+            this.mTmpFile = tmpFile;
+            this.mHeader.mKey = key;
+            this.mHeader.mTtl = this.mHeader.mSoftTtl = DiskCache.expiryFor(ttl);
+            this.mHeader.mResponseHeaders = Collections.emptyMap();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            if (this.mDone) {
+                throw new IllegalStateException("Editor is already committed or aborted");
+            }
+
+            if (this.mOut == null) {
+                this.mOut = new BufferedOutputStream(new FileOutputStream(this.mTmpFile));
+            }
+
+            return this.mOut;
+        }
+
+        @Override
+        public boolean commit() {
+            if (this.mDone) {
+                return false;
+            }
+
+            try {
+                getOutputStream().close();
+            } catch (final IOException e) {
+                abort();
+                return false;
+            }
+
+            this.mDone = true;
+            try {
+                return putFile(this.mHeader, this.mTmpFile);
+            } finally {
+                this.mTmpFile.delete();
+            }
+        }
+
+        @Override
+        public void abort() {
+            if (this.mDone) {
+                return;
+            }
+
+            this.mDone = true;
+            Streams.closeQuietly(this.mOut);
+            this.mTmpFile.delete();
+        }
+    }
+
+    private static final class ChannelInputStream extends InputStream {
+
+        private final FileChannel mChannel;
+
+        private final long mEnd;
+
+        private long mPosition;
+
+        ChannelInputStream(final FileChannel channel, final long start, final long end) {
+            this.mChannel = channel;
+            this.mPosition = start;
+            this.mEnd = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int count) throws IOException {
+            if (this.mPosition >= this.mEnd) {
+                return -1;
+            }
+
+            final int n = (int) Math.min(count, this.mEnd - this.mPosition);
+            final int read = this.mChannel.read(ByteBuffer.wrap(buffer, offset, n), this.mPosition);
+            if (read > 0) {
+                this.mPosition += read;
+            }
+            return read;
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(final ByteBuffer buffer) {
+            this.mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return this.mBuffer.hasRemaining() ? this.mBuffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int count) {
+            if (!this.mBuffer.hasRemaining()) {
+                return -1;
+            }
+
+            final int n = Math.min(count, this.mBuffer.remaining());
+            this.mBuffer.get(buffer, offset, n);
+            return n;
+        }
+    }
+
+}
@@ -0,0 +1,470 @@
+package com.wuzp.storagelib;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Index of a {@link DiskCache} directory shared by every process that opens it. The
+ * index is a hash table in a memory-mapped file, holding the size and a version of
+ * each entry along with the total size of the cache, and every access is serialized
+ * across processes with a {@link FileLock}.
+ * <p>
+ * Keys are stored as 64-bit hashes only; the cache file of an entry holds the key and
+ * is checked when the entry is read, so a hash collision reads as a miss.
+ * <p>
+ * Every put stamps the entry with a new version. A process compares the version it
+ * indexed against the shared one to notice entries written or removed by another
+ * process, without rescanning the directory.
+ * <p>
+ * File locks are held by the whole process, so caches of the same process sharing a
+ * directory must share its index too, see {@link #forDirectory(File)}.
+ */
+class SharedIndex {
+
+    static final String INDEX_FILE = "index.shm";
+
+    /**
+     * Log tag
+     */
+    private static final String TAG = "SharedIndex";
+
+    /**
+     * Magic number for current version of index file format.
+     */
+    private static final int INDEX_MAGIC = 0x53484901;
+
+    /**
+     * Header: magic, capacity, live slots, used slots, total size, version counter.
+     */
+    private static final int HEADER_LENGTH = 4 + 4 + 4 + 4 + 8 + 8;
+
+    private static final int OFFSET_CAPACITY = 4;
+
+    private static final int OFFSET_COUNT = 8;
+
+    private static final int OFFSET_USED = 12;
+
+    private static final int OFFSET_TOTAL_SIZE = 16;
+
+    private static final int OFFSET_VERSION = 24;
+
+    /**
+     * Slot: key hash, size, version, state and padding.
+     */
+    private static final int SLOT_LENGTH = 8 + 8 + 8 + 4 + 4;
+
+    private static final int SLOT_SIZE = 8;
+
+    private static final int SLOT_VERSION = 16;
+
+    private static final int SLOT_STATE = 24;
+
+    private static final int STATE_EMPTY = 0;
+
+    private static final int STATE_LIVE = 1;
+
+    private static final int STATE_DELETED = 2;
+
+    /**
+     * Initial number of slots; must be a power of two.
+     */
+    private static final int INITIAL_CAPACITY = 4096;
+
+    /**
+     * The index of every directory opened by this process, by canonical path.
+     */
+    private static final Map<String, SharedIndex> INDEXES = new HashMap<String, SharedIndex>();
+
+    private final File mFile;
+
+    private RandomAccessFile mRandomAccessFile;
+
+    private FileChannel mChannel;
+
+    private MappedByteBuffer mMap;
+
+    /**
+     * Number of slots of the current mapping.
+     */
+    private int mCapacity;
+
+    /**
+     * True once opening the index failed; the index then reports every lookup as
+     * unavailable.
+     */
+    private boolean mFailed = false;
+
+    private SharedIndex(final File directory) {
+        this.mFile = new File(directory, INDEX_FILE);
+    }
+
+    /**
+     * Returns the index of the given directory, shared by every cache of this process
+     * opening it; a second instance would fail to lock the file its sibling holds.
+     */
+    static SharedIndex forDirectory(final File directory) {
+        String path;
+        try {
+            path = directory.getCanonicalPath();
+        } catch (final IOException e) {
+            path = directory.getAbsolutePath();
+        }
+
+        synchronized (INDEXES) {
+            SharedIndex index = INDEXES.get(path);
+            if (index == null) {
+                index = new SharedIndex(directory);
+                INDEXES.put(path, index);
+            }
+            return index;
+        }
+    }
+
+    static boolean isIndexFile(final File file) {
+        return INDEX_FILE.equals(file.getName());
+    }
+
+    /**
+     * Returns the version of the entry for the given key, 0 if there is none, or -1 if
+     * the index is unavailable.
+     */
+    synchronized long version(final String key) {
+        final FileLock lock = lock(true);
+        if (lock == null) {
+            return -1;
+        }
+
+        try {
+            final int slot = find(hash(key));
+            return slot < 0 ? 0 : this.mMap.getLong(slot + SLOT_VERSION);
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Records a put of the given key.
+     *
+     * @return The version of the new entry, or -1 if the index is unavailable.
+     */
+    synchronized long put(final String key, final long size) {
+        final FileLock lock = lock(false);
+        if (lock == null) {
+            return -1;
+        }
+
+        try {
+            return insert(hash(key), size, true);
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Records an entry found on disk. Unlike {@link #put}, an entry already in the
+     * index keeps its version.
+     *
+     * @return The version of the entry, or -1 if the index is unavailable.
+     */
+    synchronized long attach(final String key, final long size) {
+        final FileLock lock = lock(false);
+        if (lock == null) {
+            return -1;
+        }
+
+        try {
+            return insert(hash(key), size, false);
+        } finally {
+            release(lock);
+        }
+    }
+
+    synchronized void remove(final String key) {
+        final FileLock lock = lock(false);
+        if (lock == null) {
+            return;
+        }
+
+        try {
+            final int slot = find(hash(key));
+            if (slot >= 0) {
+                this.mMap.putInt(slot + SLOT_STATE, STATE_DELETED);
+                this.mMap.putLong(OFFSET_TOTAL_SIZE, this.mMap.getLong(OFFSET_TOTAL_SIZE) - this.mMap.getLong(slot + SLOT_SIZE));
+                this.mMap.putInt(OFFSET_COUNT, this.mMap.getInt(OFFSET_COUNT) - 1);
+            }
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Returns the total size of the entries of all processes in bytes, or -1 if the
+     * index is unavailable.
+     */
+    synchronized long totalSize() {
+        final FileLock lock = lock(true);
+        if (lock == null) {
+            return -1;
+        }
+
+        try {
+            return this.mMap.getLong(OFFSET_TOTAL_SIZE);
+        } finally {
+            release(lock);
+        }
+    }
+
+    /**
+     * Empties the index. The version counter keeps counting, so that no process
+     * mistakes a new entry for one it indexed before.
+     */
+    synchronized void clear() {
+        final FileLock lock = lock(false);
+        if (lock == null) {
+            return;
+        }
+
+        try {
+            final long version = this.mMap.getLong(OFFSET_VERSION);
+            format(INITIAL_CAPACITY);
+            this.mMap.putLong(OFFSET_VERSION, version);
+        } catch (final IOException e) {
+            fail(e);
+        } finally {
+            release(lock);
+        }
+    }
+
+    synchronized void close() {
+        this.mMap = null;
+        Streams.closeQuietly(this.mRandomAccessFile);
+        this.mRandomAccessFile = null;
+        this.mChannel = null;
+    }
+
+    /**
+     * Locks the index file, opening the index or following a resize made by another
+     * process first if needed.
+     *
+     * @return The lock, or null if the index is unavailable.
+     */
+    private FileLock lock(final boolean shared) {
+        if (this.mFailed) {
+            return null;
+        }
+
+        FileLock lock = null;
+        try {
+            if (this.mChannel == null) {
+                this.mRandomAccessFile = new RandomAccessFile(this.mFile, "rw");
+                this.mChannel = this.mRandomAccessFile.getChannel();
+            }
+
+            // formatting needs the exclusive lock, which is then kept for the caller
+            lock = this.mChannel.lock(0, Long.MAX_VALUE, shared && this.mChannel.size() >= HEADER_LENGTH);
+            if (this.mChannel.size() < HEADER_LENGTH) {
+                format(INITIAL_CAPACITY);
+            } else if (this.mMap == null || this.mChannel.size() != mappedLength(this.mCapacity)) {
+                map();
+            }
+
+            if (this.mMap.getInt(0) != INDEX_MAGIC) {
+                Log.d(TAG, "Index magic mismatch, resetting shared index");
+                if (lock.isShared()) {
+                    lock.release();
+                    lock = this.mChannel.lock();
+                }
+                format(INITIAL_CAPACITY);
+            }
+            return lock;
+        } catch (final IOException e) {
+            release(lock);
+            fail(e);
+            return null;
+        } catch (final OverlappingFileLockException e) {
+            // locked by other code of this process; unavailable for this call only
+            release(lock);
+            Log.d(TAG, String.format("Index locked elsewhere in this process: %s", e));
+            return null;
+        }
+    }
+
+    private void release(final FileLock lock) {
+        if (lock == null) {
+            return;
+        }
+
+        try {
+            lock.release();
+        } catch (final IOException e) {
+            Log.d(TAG, String.format("Unable to release index lock: %s", e));
+        }
+    }
+
+    private void fail(final IOException e) {
+        Log.e(TAG, String.format("Shared index unavailable: %s", e));
+        this.mFailed = true;
+        close();
+    }
+
+    private static long mappedLength(final int capacity) {
+        return HEADER_LENGTH + (long) capacity * SLOT_LENGTH;
+    }
+
+    private void map() throws IOException {
+        final long length = this.mChannel.size();
+        this.mMap = this.mChannel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+        this.mCapacity = (int) ((length - HEADER_LENGTH) / SLOT_LENGTH);
+    }
+
+    /**
+     * Resizes the index file to the given capacity and empties it. Must be called with
+     * the exclusive lock held.
+     */
+    private void format(final int capacity) throws IOException {
+        this.mMap = null;
+        this.mRandomAccessFile.setLength(0);
+        this.mRandomAccessFile.setLength(mappedLength(capacity));
+        map();
+        this.mMap.putInt(0, INDEX_MAGIC);
+        this.mMap.putInt(OFFSET_CAPACITY, capacity);
+    }
+
+    /**
+     * Returns the offset of the live slot holding the given hash, or -1.
+     */
+    private int find(final long hash) {
+        final int mask = this.mCapacity - 1;
+        for (int i = spread(hash) & mask, probes = 0; probes < this.mCapacity; i = (i + 1) & mask, probes++) {
+            final int slot = HEADER_LENGTH + i * SLOT_LENGTH;
+            final int state = this.mMap.getInt(slot + SLOT_STATE);
+            if (state == STATE_EMPTY) {
+                return -1;
+            }
+            if (state == STATE_LIVE && this.mMap.getLong(slot) == hash) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private long insert(final long hash, final long size, final boolean replace) {
+        final int existing = find(hash);
+        if (existing >= 0) {
+            if (!replace) {
+                return this.mMap.getLong(existing + SLOT_VERSION);
+            }
+
+            final long version = nextVersion();
+            this.mMap.putLong(OFFSET_TOTAL_SIZE, this.mMap.getLong(OFFSET_TOTAL_SIZE) + size - this.mMap.getLong(existing + SLOT_SIZE));
+            this.mMap.putLong(existing + SLOT_SIZE, size);
+            this.mMap.putLong(existing + SLOT_VERSION, version);
+            return version;
+        }
+
+        // keep the table at most three quarters full, counting deleted slots
+        if ((this.mMap.getInt(OFFSET_USED) + 1) * 4L > this.mCapacity * 3L) {
+            try {
+                rehash();
+            } catch (final IOException e) {
+                fail(e);
+                return -1;
+            }
+        }
+
+        final long version = nextVersion();
+        store(hash, size, version);
+        this.mMap.putInt(OFFSET_COUNT, this.mMap.getInt(OFFSET_COUNT) + 1);
+        this.mMap.putLong(OFFSET_TOTAL_SIZE, this.mMap.getLong(OFFSET_TOTAL_SIZE) + size);
+        return version;
+    }
+
+    private long nextVersion() {
+        final long version = this.mMap.getLong(OFFSET_VERSION) + 1;
+        this.mMap.putLong(OFFSET_VERSION, version);
+        return version;
+    }
+
+    /**
+     * Writes a slot into the first free position for the hash, bumping the used count
+     * if that position was never used.
+     */
+    private void store(final long hash, final long size, final long version) {
+        final int mask = this.mCapacity - 1;
+        int i = spread(hash) & mask;
+        while (true) {
+            final int slot = HEADER_LENGTH + i * SLOT_LENGTH;
+            final int state = this.mMap.getInt(slot + SLOT_STATE);
+            if (state != STATE_LIVE) {
+                if (state == STATE_EMPTY) {
+                    this.mMap.putInt(OFFSET_USED, this.mMap.getInt(OFFSET_USED) + 1);
+                }
+                this.mMap.putLong(slot, hash);
+                this.mMap.putLong(slot + SLOT_SIZE, size);
+                this.mMap.putLong(slot + SLOT_VERSION, version);
+                this.mMap.putInt(slot + SLOT_STATE, STATE_LIVE);
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Drops the deleted slots, doubling the capacity if the live slots alone fill half
+     * of the table. Must be called with the exclusive lock held.
+     */
+    private void rehash() throws IOException {
+        final int count = this.mMap.getInt(OFFSET_COUNT);
+        final long[] hashes = new long[count];
+        final long[] sizes = new long[count];
+        final long[] versions = new long[count];
+        int n = 0;
+        for (int i = 0; i < this.mCapacity && n < count; i++) {
+            final int slot = HEADER_LENGTH + i * SLOT_LENGTH;
+            if (this.mMap.getInt(slot + SLOT_STATE) == STATE_LIVE) {
+                hashes[n] = this.mMap.getLong(slot);
+                sizes[n] = this.mMap.getLong(slot + SLOT_SIZE);
+                versions[n] = this.mMap.getLong(slot + SLOT_VERSION);
+                n++;
+            }
+        }
+
+        final long total = this.mMap.getLong(OFFSET_TOTAL_SIZE);
+        final long version = this.mMap.getLong(OFFSET_VERSION);
+        format(count * 2 >= this.mCapacity ? this.mCapacity * 2 : this.mCapacity);
+        for (int i = 0; i < n; i++) {
+            store(hashes[i], sizes[i], versions[i]);
+        }
+        this.mMap.putInt(OFFSET_COUNT, n);
+        this.mMap.putLong(OFFSET_TOTAL_SIZE, total);
+        this.mMap.putLong(OFFSET_VERSION, version);
+    }
+
+    private static int spread(final long hash) {
+        return (int) (hash ^ (hash >>> 32));
+    }
+
+    /**
+     * 64-bit FNV-1a hash of the UTF-16 code units of the key.
+     */
+    static long hash(final String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            final char c = key.charAt(i);
+            h ^= c & 0xff;
+            h *= 0x100000001b3L;
+            h ^= c >>> 8;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+}
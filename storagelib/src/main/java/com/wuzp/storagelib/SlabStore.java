@@ -0,0 +1,419 @@
+package com.wuzp.storagelib;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.wuzp.storagelib.Cache.Entry;
+
+/**
+ * Store of encoded cache entries kept off the Java heap, in direct {@link ByteBuffer}
+ * pages carved into fixed-size chunks. Every page serves a single size class, and
+ * each entry takes the smallest chunk its data fits in; only a small slot record per
+ * entry stays on the heap.
+ * <p>
+ * When a size class runs out of chunks and no page is left to give it, the least
+ * recently used entry of that class is evicted. A class without entries to evict
+ * takes over a page from the class holding the most pages, evicting the entries on
+ * that page.
+ */
+class SlabStore {
+
+    /**
+     * Default size of a page in bytes, which is also the largest entry stored.
+     */
+    static final int DEFAULT_PAGE_SIZE = 1024 * 1024;
+
+    /**
+     * Size of the smallest chunks in bytes.
+     */
+    private static final int MIN_CHUNK_SIZE = 64;
+
+    /**
+     * Ratio between the chunk sizes of consecutive size classes.
+     */
+    private static final float GROWTH_FACTOR = 1.25f;
+
+    private final int mPageSize;
+
+    private final int mMaxPages;
+
+    private final List<ByteBuffer> mPages = new ArrayList<ByteBuffer>();
+
+    private final SizeClass[] mClasses;
+
+    private final Map<String, Slot> mEntries = new HashMap<String, Slot>();
+
+    /**
+     * Incremented by every write, so that an entry read from a slower tier is not
+     * stored over a write that raced with the read.
+     */
+    private long mGeneration = 0;
+
+    /**
+     * Total length of the stored entries in bytes.
+     */
+    private long mUsedBytes = 0;
+
+    /**
+     * Total size of the chunks holding the stored entries in bytes.
+     */
+    private long mChunkBytes = 0;
+
+    private long mEvictionCount = 0;
+
+    /**
+     * @param maxSizeInBytes The off-heap budget in bytes, rounded down to whole pages.
+     * @param pageSize       The size of a page in bytes.
+     */
+    SlabStore(final long maxSizeInBytes, final int pageSize) {
+        this.mPageSize = pageSize;
+        this.mMaxPages = (int) Math.min(Integer.MAX_VALUE, maxSizeInBytes / pageSize);
+
+        final List<SizeClass> classes = new ArrayList<SizeClass>();
+        int chunkSize = MIN_CHUNK_SIZE;
+        while (chunkSize < pageSize / 2) {
+            classes.add(new SizeClass(chunkSize));
+            chunkSize = ((int) (chunkSize * GROWTH_FACTOR) + 7) & ~7;
+        }
+        classes.add(new SizeClass(pageSize));
+        this.mClasses = classes.toArray(new SizeClass[classes.size()]);
+    }
+
+    SlabStore(final long maxSizeInBytes) {
+        this(maxSizeInBytes, DEFAULT_PAGE_SIZE);
+    }
+
+    /**
+     * Returns a copy of the entry stored for the key, or null if it is absent or
+     * expired.
+     */
+    synchronized Entry get(final String key) {
+        final Slot slot = this.mEntries.get(key);
+        if (slot == null) {
+            return null;
+        }
+
+        if (slot.mTtl < System.currentTimeMillis()) {
+            remove(key);
+            return null;
+        }
+
+        // refresh the slot in the LRU order of its class
+        this.mClasses[slot.mClass].mSlots.get(key);
+
+        final byte[] data = new byte[slot.mLength];
+        final ByteBuffer page = this.mPages.get(slot.mPage).duplicate();
+        page.position(slot.mOffset);
+        page.get(data);
+        return slot.toEntry(data);
+    }
+
+    synchronized boolean has(final String key) {
+        return this.mEntries.containsKey(key);
+    }
+
+    /**
+     * Stores the entry, evicting entries of its size class as needed. Entries larger
+     * than a page are not stored.
+     */
+    synchronized void put(final String key, final Entry entry) {
+        remove(key);
+        insert(key, entry);
+    }
+
+    /**
+     * Stores an entry read from a slower tier, unless a write happened since
+     * {@link #generation()} was sampled before that read.
+     */
+    synchronized void promote(final String key, final Entry entry, final long generation) {
+        if (generation == this.mGeneration && !this.mEntries.containsKey(key)) {
+            insert(key, entry);
+        }
+    }
+
+    synchronized long generation() {
+        return this.mGeneration;
+    }
+
+    synchronized void remove(final String key) {
+        this.mGeneration++;
+        final Slot slot = this.mEntries.remove(key);
+        if (slot != null) {
+            this.mClasses[slot.mClass].mSlots.remove(key);
+            release(slot);
+        }
+    }
+
+    synchronized void clear() {
+        this.mGeneration++;
+        this.mEntries.clear();
+        this.mUsedBytes = 0;
+        this.mChunkBytes = 0;
+        for (final SizeClass sizeClass : this.mClasses) {
+            sizeClass.mSlots.clear();
+            sizeClass.mFreeCount = 0;
+            for (final int page : sizeClass.mPages) {
+                sizeClass.addChunks(page, this.mPageSize);
+            }
+        }
+    }
+
+    /**
+     * Returns the total length of the stored entries in bytes.
+     */
+    synchronized long usedBytes() {
+        return this.mUsedBytes;
+    }
+
+    /**
+     * Returns the off-heap memory allocated for pages in bytes.
+     */
+    synchronized long reservedBytes() {
+        return (long) this.mPages.size() * this.mPageSize;
+    }
+
+    synchronized long maxBytes() {
+        return (long) this.mMaxPages * this.mPageSize;
+    }
+
+    /**
+     * Returns the fraction of the chunks holding entries that is wasted by rounding
+     * the entries up to their chunk size.
+     */
+    synchronized float internalFragmentation() {
+        return this.mChunkBytes == 0 ? 0 : 1 - (float) this.mUsedBytes / this.mChunkBytes;
+    }
+
+    /**
+     * Returns the fraction of the allocated pages that holds no entry data, counting
+     * both rounding waste and free chunks stranded in pages of other size classes.
+     */
+    synchronized float fragmentation() {
+        final long reserved = reservedBytes();
+        return reserved == 0 ? 0 : 1 - (float) this.mUsedBytes / reserved;
+    }
+
+    synchronized long evictionCount() {
+        return this.mEvictionCount;
+    }
+
+    synchronized int size() {
+        return this.mEntries.size();
+    }
+
+    private void insert(final String key, final Entry entry) {
+        if (entry.data == null) {
+            return;
+        }
+
+        final int sizeClass = classFor(entry.data.length);
+        if (sizeClass < 0) {
+            return;
+        }
+
+        final long chunk = allocate(sizeClass);
+        if (chunk < 0) {
+            return;
+        }
+
+        final Slot slot = new Slot(entry, sizeClass, (int) (chunk >>> 32), (int) chunk);
+        final ByteBuffer page = this.mPages.get(slot.mPage).duplicate();
+        page.position(slot.mOffset);
+        page.put(entry.data);
+
+        this.mEntries.put(key, slot);
+        this.mClasses[sizeClass].mSlots.put(key, slot);
+        this.mUsedBytes += slot.mLength;
+        this.mChunkBytes += this.mClasses[sizeClass].mChunkSize;
+    }
+
+    /**
+     * Returns the index of the smallest size class holding the given length, or -1 if
+     * it is larger than a page.
+     */
+    private int classFor(final int length) {
+        for (int i = 0; i < this.mClasses.length; i++) {
+            if (length <= this.mClasses[i].mChunkSize) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a free chunk of the size class as its page index in the high and its
+     * offset in the low 32 bits, or -1 if none can be made available.
+     */
+    private long allocate(final int index) {
+        final SizeClass sizeClass = this.mClasses[index];
+        if (sizeClass.mFreeCount == 0) {
+            if (this.mPages.size() < this.mMaxPages) {
+                this.mPages.add(ByteBuffer.allocateDirect(this.mPageSize));
+                sizeClass.mPages.add(this.mPages.size() - 1);
+                sizeClass.addChunks(this.mPages.size() - 1, this.mPageSize);
+            } else if (!sizeClass.mSlots.isEmpty()) {
+                evict(sizeClass.mSlots.keySet().iterator().next());
+            } else if (!reassignPage(index)) {
+                return -1;
+            }
+        }
+
+        return sizeClass.mFree[--sizeClass.mFreeCount];
+    }
+
+    /**
+     * Moves a page from the size class holding the most pages to the given class,
+     * evicting the entries on it.
+     */
+    private boolean reassignPage(final int index) {
+        SizeClass donor = null;
+        for (final SizeClass sizeClass : this.mClasses) {
+            if (sizeClass != this.mClasses[index] && (donor == null || sizeClass.mPages.size() > donor.mPages.size())) {
+                donor = sizeClass;
+            }
+        }
+        if (donor == null || donor.mPages.isEmpty()) {
+            return false;
+        }
+
+        final int page = donor.mPages.remove(donor.mPages.size() - 1);
+        for (final Iterator<Map.Entry<String, Slot>> i = donor.mSlots.entrySet().iterator(); i.hasNext(); ) {
+            final Map.Entry<String, Slot> e = i.next();
+            if (e.getValue().mPage == page) {
+                i.remove();
+                this.mEntries.remove(e.getKey());
+                this.mUsedBytes -= e.getValue().mLength;
+                this.mChunkBytes -= donor.mChunkSize;
+                this.mEvictionCount++;
+            }
+        }
+        int kept = 0;
+        for (int i = 0; i < donor.mFreeCount; i++) {
+            if ((int) (donor.mFree[i] >>> 32) != page) {
+                donor.mFree[kept++] = donor.mFree[i];
+            }
+        }
+        donor.mFreeCount = kept;
+
+        final SizeClass sizeClass = this.mClasses[index];
+        sizeClass.mPages.add(page);
+        sizeClass.addChunks(page, this.mPageSize);
+        return true;
+    }
+
+    private void evict(final String key) {
+        final Slot slot = this.mEntries.remove(key);
+        this.mClasses[slot.mClass].mSlots.remove(key);
+        release(slot);
+        this.mEvictionCount++;
+    }
+
+    private void release(final Slot slot) {
+        final SizeClass sizeClass = this.mClasses[slot.mClass];
+        sizeClass.free(((long) slot.mPage << 32) | slot.mOffset);
+        this.mUsedBytes -= slot.mLength;
+        this.mChunkBytes -= sizeClass.mChunkSize;
+    }
+
+    private static final class SizeClass {
+
+        final int mChunkSize;
+
+        /**
+         * Indexes of the pages assigned to this class.
+         */
+        final List<Integer> mPages = new ArrayList<Integer>();
+
+        /**
+         * Stack of free chunks, as page index and offset, kept unboxed so that the
+         * heap cost does not grow with the number of chunks.
+         */
+        long[] mFree = new long[16];
+
+        int mFreeCount = 0;
+
+        /**
+         * Slots of this class, in access order.
+         */
+        final Map<String, Slot> mSlots = new LinkedHashMap<String, Slot>(16, .75f, true);
+
+        SizeClass(final int chunkSize) {
+            this.mChunkSize = chunkSize;
+        }
+
+        void addChunks(final int page, final int pageSize) {
+            for (int offset = pageSize - pageSize % this.mChunkSize - this.mChunkSize; offset >= 0; offset -= this.mChunkSize) {
+                free(((long) page << 32) | offset);
+            }
+        }
+
+        void free(final long chunk) {
+            if (this.mFreeCount == this.mFree.length) {
+                this.mFree = Arrays.copyOf(this.mFree, this.mFree.length * 2);
+            }
+            this.mFree[this.mFreeCount++] = chunk;
+        }
+    }
+
+    /**
+     * On-heap record of a stored entry: where its data lives and its metadata.
+     */
+    private static final class Slot {
+
+        final int mClass;
+
+        final int mPage;
+
+        final int mOffset;
+
+        final int mLength;
+
+        final String mEtag;
+
+        final long mServerDate;
+
+        final long mLastModified;
+
+        final long mTtl;
+
+        final long mSoftTtl;
+
+        final int mValueCodec;
+
+        final Map<String, String> mResponseHeaders;
+
+        Slot(final Entry entry, final int sizeClass, final int page, final int offset) {
+            this.mClass = sizeClass;
+            this.mPage = page;
+            this.mOffset = offset;
+            this.mLength = entry.data.length;
+            this.mEtag = entry.etag;
+            this.mServerDate = entry.serverDate;
+            this.mLastModified = entry.lastModified;
+            this.mTtl = entry.ttl;
+            this.mSoftTtl = entry.softTtl;
+            this.mValueCodec = entry.valueCodec;
+            this.mResponseHeaders = entry.responseHeaders;
+        }
+
+        Entry toEntry(final byte[] data) {
+            final Entry e = new Entry();
+            e.data = data;
+            e.etag = this.mEtag;
+            e.serverDate = this.mServerDate;
+            e.lastModified = this.mLastModified;
+            e.ttl = this.mTtl;
+            e.softTtl = this.mSoftTtl;
+            e.valueCodec = this.mValueCodec;
+            e.responseHeaders = this.mResponseHeaders;
+            return e;
+        }
+    }
+
+}
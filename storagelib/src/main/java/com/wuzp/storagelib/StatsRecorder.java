@@ -0,0 +1,140 @@
+package com.wuzp.storagelib;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free counters and latency histograms a cache records its statistics into.
+ * Recording only touches atomics, so it is cheap enough for every request and never
+ * blocks a caller; {@link #snapshot()} reads them into a {@link CacheStats}.
+ */
+class StatsRecorder {
+
+    private final AtomicLong mHits = new AtomicLong();
+
+    private final AtomicLong mMisses = new AtomicLong();
+
+    private final AtomicLong mLoadSuccesses = new AtomicLong();
+
+    private final AtomicLong mLoadFailures = new AtomicLong();
+
+    private final AtomicLong mEvictions = new AtomicLong();
+
+    private final AtomicLong mExpiries = new AtomicLong();
+
+    private final AtomicLong mBytesRead = new AtomicLong();
+
+    private final AtomicLong mBytesWritten = new AtomicLong();
+
+    final Histogram mGet = new Histogram();
+
+    final Histogram mPut = new Histogram();
+
+    final Histogram mLoad = new Histogram();
+
+    final Histogram mInitialize = new Histogram();
+
+    final Histogram mPrune = new Histogram();
+
+    final Histogram mDecode = new Histogram();
+
+    void recordHit() {
+        this.mHits.incrementAndGet();
+    }
+
+    void recordMiss() {
+        this.mMisses.incrementAndGet();
+    }
+
+    void recordEviction() {
+        this.mEvictions.incrementAndGet();
+    }
+
+    void recordExpiry() {
+        this.mExpiries.incrementAndGet();
+    }
+
+    void recordBytesRead(final long bytes) {
+        this.mBytesRead.addAndGet(bytes);
+    }
+
+    void recordBytesWritten(final long bytes) {
+        this.mBytesWritten.addAndGet(bytes);
+    }
+
+    /**
+     * Calls the loader, recording its outcome and latency.
+     */
+    <T> T load(final String key, final Cache.Loader<T> loader) throws Exception {
+        final long start = System.nanoTime();
+        boolean loaded = false;
+        try {
+            final T value = loader.load(key);
+            loaded = true;
+            return value;
+        } finally {
+            this.mLoad.record(System.nanoTime() - start);
+            (loaded ? this.mLoadSuccesses : this.mLoadFailures).incrementAndGet();
+        }
+    }
+
+    CacheStats snapshot() {
+        return new CacheStats(this.mHits.get(), this.mMisses.get(), this.mLoadSuccesses.get(),
+            this.mLoadFailures.get(), this.mEvictions.get(), this.mExpiries.get(), this.mBytesRead.get(),
+            this.mBytesWritten.get(), this.mGet.snapshot(), this.mPut.snapshot(), this.mLoad.snapshot(),
+            this.mInitialize.snapshot(), this.mPrune.snapshot(), this.mDecode.snapshot());
+    }
+
+    /**
+     * Returns a snapshot of the requests recorded here over the storage statistics of
+     * the lower tier: evictions, expiries, bytes, initialization, pruning and decoding
+     * are taken from the given snapshot.
+     */
+    CacheStats snapshot(final CacheStats lower) {
+        return new CacheStats(this.mHits.get(), this.mMisses.get(), this.mLoadSuccesses.get(),
+            this.mLoadFailures.get(), lower.getEvictionCount(), lower.getExpiryCount(), lower.getBytesRead(),
+            lower.getBytesWritten(), this.mGet.snapshot(), this.mPut.snapshot(), this.mLoad.snapshot(),
+            lower.getInitializeLatency(), lower.getPruneLatency(), lower.getDecodeLatency());
+    }
+
+    /**
+     * Latency histogram in power-of-two buckets of nanoseconds, see
+     * {@link CacheStats.Latency}.
+     */
+    static final class Histogram {
+
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+
+        private final AtomicLong mTotalNanos = new AtomicLong();
+
+        private final AtomicLong mMaxNanos = new AtomicLong();
+
+        void record(final long nanos) {
+            final long duration = Math.max(0, nanos);
+            this.mBuckets.incrementAndGet(duration == 0 ? 0 : 63 - Long.numberOfLeadingZeros(duration));
+            this.mTotalNanos.addAndGet(duration);
+
+            long max = this.mMaxNanos.get();
+            while (duration > max && !this.mMaxNanos.compareAndSet(max, duration)) {
+                max = this.mMaxNanos.get();
+            }
+        }
+
+        /**
+         * Records the time elapsed since the given {@link System#nanoTime()}.
+         */
+        void recordSince(final long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        CacheStats.Latency snapshot() {
+            final long[] buckets = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = this.mBuckets.get(i);
+            }
+            return new CacheStats.Latency(buckets, this.mTotalNanos.get(), this.mMaxNanos.get());
+        }
+    }
+}
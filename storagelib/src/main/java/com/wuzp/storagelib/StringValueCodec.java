@@ -0,0 +1,33 @@
+package com.wuzp.storagelib;
+
+import java.nio.charset.Charset;
+
+/**
+ * Value codec storing strings as UTF-8.
+ */
+class StringValueCodec implements ValueCodec {
+
+    static final int ID = 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Override
+    public int id() {
+        return ID;
+    }
+
+    @Override
+    public boolean canEncode(final Object value) {
+        return value instanceof String;
+    }
+
+    @Override
+    public byte[] encode(final Object value) {
+        return ((String) value).getBytes(UTF_8);
+    }
+
+    @Override
+    public Object decode(final byte[] data) {
+        return new String(data, UTF_8);
+    }
+}
@@ -0,0 +1,108 @@
+package com.wuzp.storagelib;
+
+/**
+ * Two-tier cache that keeps recently used values decoded in a byte-bounded memory
+ * tier (L1) in front of a {@link DiskCache} (L2).
+ * <p>
+ * Writes and promotions follow {@link AbstractTieredCache}. Values served from memory
+ * are shared between callers and must not be mutated.
+ */
+class TieredCache extends AbstractTieredCache {
+
+    /**
+     * Default memory budget in bytes.
+     */
+    protected static final int DEFAULT_MEMORY_USAGE_BYTES = 1024 * 1024;
+
+    private final MemoryCache mMemory;
+
+    /**
+     * Constructs a TieredCache in front of the given disk cache.
+     *
+     * @param disk                  The disk tier; its own budget bounds the disk usage.
+     * @param memoryCacheSizeInBytes The maximum weight of the values kept in memory.
+     */
+    TieredCache(final DiskCache disk, final long memoryCacheSizeInBytes) {
+        super(disk);
+        this.mMemory = new MemoryCache(memoryCacheSizeInBytes);
+    }
+
+    /**
+     * Constructs a TieredCache in front of the given disk cache using the default
+     * memory budget of 1MB.
+     */
+    TieredCache(final DiskCache disk) {
+        this(disk, DEFAULT_MEMORY_USAGE_BYTES);
+    }
+
+    @Override
+    boolean frontHas(final String key) {
+        return this.mMemory.has(key);
+    }
+
+    @Override
+    <T> T frontGet(final String key) {
+        return (T) this.mMemory.get(key);
+    }
+
+    @Override
+    long frontGeneration() {
+        return this.mMemory.generation();
+    }
+
+    @Override
+    void frontPromote(final String key, final Entry entry, final Object value, final long generation) {
+        this.mMemory.promote(key, value, entry.data.length, entry.ttl, generation);
+    }
+
+    @Override
+    void frontPut(final String key, final Entry entry, final Object value) {
+        this.mMemory.put(key, value, entry.data.length, entry.ttl);
+    }
+
+    @Override
+    void frontRemove(final String key) {
+        this.mMemory.remove(key);
+    }
+
+    @Override
+    void frontClear() {
+        this.mMemory.clear();
+    }
+
+    /**
+     * Returns the number of reads served from memory.
+     */
+    public long getMemoryHitCount() {
+        return frontHitCount();
+    }
+
+    /**
+     * Returns the number of reads that had to fall through to disk.
+     */
+    public long getMemoryMissCount() {
+        return frontMissCount();
+    }
+
+    /**
+     * Returns the number of reads served from disk.
+     */
+    public long getDiskHitCount() {
+        return diskHitCount();
+    }
+
+    /**
+     * Returns the number of reads found in neither tier.
+     */
+    public long getDiskMissCount() {
+        return diskMissCount();
+    }
+
+    /**
+     * Returns the weight of the values currently held in memory, in bytes.
+     */
+    public long getMemorySize() {
+        return this.mMemory.size();
+    }
+
+}
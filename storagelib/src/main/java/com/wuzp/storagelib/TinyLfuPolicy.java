@@ -0,0 +1,160 @@
+package com.wuzp.storagelib;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Window TinyLFU. New entries enter a small LRU window (1% of the weight); entries
+ * leaving the window join the probation segment of a segmented LRU, and are promoted
+ * to its protected segment (80% of the main space) when read again.
+ * <p>
+ * At eviction time the entries that most recently left the window are candidates
+ * that have to beat the probation victims on the frequency estimated by a
+ * {@link FrequencySketch}; the loser of every duel is evicted. One-off reads, such as
+ * a bulk scan, therefore rarely displace the working set.
+ */
+class TinyLfuPolicy implements EvictionPolicy {
+
+    private static final float WINDOW_FRACTION = 0.01f;
+
+    private static final float PROTECTED_FRACTION = 0.8f;
+
+    private final Map<String, Long> mWindow = new LinkedHashMap<String, Long>(16, .75f, true);
+
+    private final Map<String, Long> mProbation = new LinkedHashMap<String, Long>(16, .75f, true);
+
+    private final Map<String, Long> mProtected = new LinkedHashMap<String, Long>(16, .75f, true);
+
+    private final FrequencySketch mSketch = new FrequencySketch(256);
+
+    private final long mMaxWindowWeight;
+
+    private final long mMaxProtectedWeight;
+
+    private long mWindowWeight = 0;
+
+    private long mProtectedWeight = 0;
+
+    /**
+     * @param maximumWeight The maximum size of the cache in bytes.
+     */
+    TinyLfuPolicy(final long maximumWeight) {
+        this.mMaxWindowWeight = Math.max(1, (long) (maximumWeight * WINDOW_FRACTION));
+        this.mMaxProtectedWeight = (long) ((maximumWeight - this.mMaxWindowWeight) * PROTECTED_FRACTION);
+    }
+
+    @Override
+    public synchronized void onPut(final String key, final long size) {
+        this.mSketch.increment(key);
+        remove(key);
+
+        this.mWindow.put(key, size);
+        this.mWindowWeight += size;
+        this.mSketch.ensureCapacity(this.mWindow.size() + this.mProbation.size() + this.mProtected.size());
+
+        // entries leaving the window become candidates at the probation's MRU end
+        for (final Iterator<Map.Entry<String, Long>> i = this.mWindow.entrySet().iterator();
+             i.hasNext() && this.mWindowWeight > this.mMaxWindowWeight && this.mWindow.size() > 1; ) {
+            final Map.Entry<String, Long> entry = i.next();
+            i.remove();
+            this.mWindowWeight -= entry.getValue();
+            this.mProbation.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public synchronized void onAccess(final String key) {
+        this.mSketch.increment(key);
+
+        if (this.mWindow.get(key) != null || this.mProtected.get(key) != null) {
+            return;
+        }
+
+        final Long size = this.mProbation.remove(key);
+        if (size == null) {
+            return;
+        }
+
+        this.mProtected.put(key, size);
+        this.mProtectedWeight += size;
+
+        // demote the protected LRU entries back to probation
+        for (final Iterator<Map.Entry<String, Long>> i = this.mProtected.entrySet().iterator();
+             i.hasNext() && this.mProtectedWeight > this.mMaxProtectedWeight && this.mProtected.size() > 1; ) {
+            final Map.Entry<String, Long> entry = i.next();
+            i.remove();
+            this.mProtectedWeight -= entry.getValue();
+            this.mProbation.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public synchronized void onRemove(final String key) {
+        remove(key);
+    }
+
+    @Override
+    public synchronized void onEvict(final String key) {
+        remove(key);
+    }
+
+    /**
+     * Returns the losers of the duels between the probation candidates, newest
+     * first, and the probation victims, oldest first. Whatever is left after the
+     * probation segment follows: protected entries, then the window.
+     */
+    @Override
+    public synchronized Iterator<String> evictionOrder() {
+        final List<String> probation = new ArrayList<String>(this.mProbation.keySet());
+        final List<String> order = new ArrayList<String>(this.mWindow.size() + probation.size() + this.mProtected.size());
+
+        int victim = 0;
+        int candidate = probation.size() - 1;
+        while (victim < candidate) {
+            final String victimKey = probation.get(victim);
+            final String candidateKey = probation.get(candidate);
+            if (this.mSketch.frequency(candidateKey) > this.mSketch.frequency(victimKey)) {
+                order.add(victimKey);
+                victim++;
+            } else {
+                order.add(candidateKey);
+                candidate--;
+            }
+        }
+        if (victim == candidate) {
+            order.add(probation.get(victim));
+        }
+
+        order.addAll(this.mProtected.keySet());
+        order.addAll(this.mWindow.keySet());
+        return order.iterator();
+    }
+
+    @Override
+    public synchronized void clear() {
+        this.mWindow.clear();
+        this.mProbation.clear();
+        this.mProtected.clear();
+        this.mWindowWeight = 0;
+        this.mProtectedWeight = 0;
+    }
+
+    private void remove(final String key) {
+        Long size = this.mWindow.remove(key);
+        if (size != null) {
+            this.mWindowWeight -= size;
+            return;
+        }
+
+        size = this.mProtected.remove(key);
+        if (size != null) {
+            this.mProtectedWeight -= size;
+            return;
+        }
+
+        this.mProbation.remove(key);
+    }
+}
@@ -0,0 +1,25 @@
+package com.wuzp.storagelib;
+
+import java.io.IOException;
+
+/**
+ * Encodes cached values to bytes and back. The id of the codec is stored in the
+ * header of every entry it encodes, so that the entry is decoded by the same codec.
+ */
+interface ValueCodec {
+
+    /**
+     * Identifier stored in the header of entries encoded by this codec, between 0 and
+     * 15. Ids 0 to 3 are taken by the built-in codecs.
+     */
+    int id();
+
+    /**
+     * Returns true if this codec can encode the given value.
+     */
+    boolean canEncode(final Object value);
+
+    byte[] encode(final Object value) throws IOException;
+
+    Object decode(final byte[] data) throws IOException;
+}
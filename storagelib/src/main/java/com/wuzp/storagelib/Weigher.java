@@ -0,0 +1,29 @@
+package com.wuzp.storagelib;
+
+import com.wuzp.storagelib.Cache.Entry;
+
+/**
+ * Computes the weight of an entry that an {@link AdmissionFilter} compares against
+ * its limits: its size in bytes by default, or any cost that suits the values cached,
+ * such as the time they take to load.
+ */
+interface Weigher {
+
+    /**
+     * Weighs entries by the length of their encoded data.
+     */
+    Weigher BYTES = new Weigher() {
+        @Override
+        public long weigh(final String key, final Entry entry) {
+            return entry.data == null ? 0 : entry.data.length;
+        }
+    };
+
+    /**
+     * Returns the weight of the entry about to be stored; must not be negative.
+     *
+     * @param key   Cache key
+     * @param entry The encoded entry.
+     */
+    long weigh(final String key, final Entry entry);
+}
@@ -0,0 +1,275 @@
+package com.wuzp.storagelib;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Hammers a {@link DiskCache} from several threads at once and checks that the
+ * concurrent index, the striped locks and the files on disk still agree, and that a
+ * slow operation only holds up the keys of its own lock stripe.
+ */
+public class DiskCacheConcurrencyTest {
+
+    private static final int KEYS = 64;
+
+    private static final int MAX_SIZE = 64 * 1024;
+
+    private static final int TIMEOUT_SECONDS = 5;
+
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws IOException {
+        this.mDirectory = File.createTempFile("disk-cache", "");
+        assertTrue(this.mDirectory.delete());
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(this.mDirectory);
+    }
+
+    @Test
+    public void concurrentPutGetRemoveKeepsIndexAndFilesConsistent() throws Exception {
+        final DiskCache cache = new DiskCache(this.mDirectory, MAX_SIZE);
+        cache.initialize();
+
+        // small enough a budget that eviction runs concurrently with everything else
+        run(cache, 8, 3000, 50, 35);
+
+        long fileBytes = 0;
+        int files = 0;
+        for (final File file : cacheFiles(this.mDirectory)) {
+            assertTrue("Unpublished temporary file " + file, !file.getName().endsWith(".tmp"));
+            fileBytes += file.length();
+            files++;
+        }
+
+        int indexed = 0;
+        for (int i = 0; i < KEYS; i++) {
+            final String key = "k" + i;
+            if (cache.has(key)) {
+                indexed++;
+                final String value = cache.get(key);
+                assertTrue("Value of " + key + " is " + value, value != null && value.startsWith(key + "#"));
+            } else {
+                assertNull(cache.get(key));
+            }
+        }
+        assertEquals("Files on disk", indexed, files);
+        assertEquals("Indexed bytes", fileBytes, cache.getTotalSize());
+        assertTrue("Over budget: " + cache.getTotalSize(), cache.getTotalSize() <= MAX_SIZE);
+
+        // the journal must replay to the same index
+        final DiskCache reopened = new DiskCache(this.mDirectory, MAX_SIZE);
+        reopened.initialize();
+        for (int i = 0; i < KEYS; i++) {
+            final String key = "k" + i;
+            assertEquals("Reopened " + key, cache.<String>get(key), reopened.<String>get(key));
+        }
+        assertEquals("Reopened indexed bytes", cache.getTotalSize(), reopened.getTotalSize());
+    }
+
+    @Test
+    public void slowOperationBlocksOnlyItsOwnStripe() throws Exception {
+        final DiskCache cache = new DiskCache(this.mDirectory, MAX_SIZE);
+        cache.initialize();
+        // a decoded value would be served without taking the stripe
+        cache.disableDecodedValueCache();
+
+        final String slow = "k0";
+        final String other = keyOnOtherStripe(cache, slow);
+        cache.put(slow, "slow", Long.MAX_VALUE);
+        cache.put(other, "other", Long.MAX_VALUE);
+
+        // a slow read shares its stripe with other readers
+        final Lock read = cache.lockFor(slow).readLock();
+        read.lock();
+        try {
+            assertTrue("Reader of the same stripe blocked by a read", completes(readOf(cache, slow, "slow")));
+        } finally {
+            read.unlock();
+        }
+
+        // a slow write only holds up its own stripe
+        final Lock write = cache.lockFor(slow).writeLock();
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                cache.get(slow);
+                blocked.countDown();
+            }
+        });
+        write.lock();
+        try {
+            reader.start();
+            assertTrue("Reader of another stripe blocked", completes(readOf(cache, other, "other")));
+            assertTrue("Writer of another stripe blocked", completes(new Runnable() {
+                @Override
+                public void run() {
+                    cache.put(other, "other", Long.MAX_VALUE);
+                }
+            }));
+            assertTrue("Reader of the written stripe not blocked", !blocked.await(100, TimeUnit.MILLISECONDS));
+        } finally {
+            write.unlock();
+        }
+        assertTrue("Reader of the written stripe never resumed", blocked.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Runs a random mix of puts, gets and removes of the same few keys from several
+     * threads at once.
+     *
+     * @param putPercent The share of puts; of the rest, getPercent are gets and the
+     *                   others removes.
+     */
+    private static void run(final DiskCache cache, final int threads, final int opsPerThread, final int putPercent,
+                            final int getPercent) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final List<Thread> workers = new ArrayList<Thread>(threads);
+
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            workers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final Random random = new Random(thread);
+                    try {
+                        start.await();
+                        for (int i = 0; i < opsPerThread; i++) {
+                            final String key = "k" + random.nextInt(KEYS);
+                            final int op = random.nextInt(100);
+                            if (op < putPercent) {
+                                cache.put(key, value(key, thread, i, random), Long.MAX_VALUE);
+                            } else if (op < putPercent + getPercent) {
+                                final String value = cache.get(key);
+                                if (value != null && !value.startsWith(key + "#")) {
+                                    throw new AssertionError("Read " + value + " for " + key);
+                                }
+                            } else {
+                                cache.remove(key);
+                            }
+                        }
+                    } catch (final Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }));
+        }
+
+        for (final Thread worker : workers) {
+            worker.start();
+        }
+        start.countDown();
+        done.await();
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    private static String keyOnOtherStripe(final DiskCache cache, final String key) {
+        for (int i = 1; ; i++) {
+            if (cache.lockFor("k" + i) != cache.lockFor(key)) {
+                return "k" + i;
+            }
+        }
+    }
+
+    /**
+     * Returns a task reading the key and checking its value.
+     */
+    private static Runnable readOf(final DiskCache cache, final String key, final String expected) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                assertEquals(expected, cache.<String>get(key));
+            }
+        };
+    }
+
+    /**
+     * Runs the task on another thread and returns true if it completed in time.
+     */
+    private static boolean completes(final Runnable task) throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(1);
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (final Throwable e) {
+                    failure.set(e);
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        thread.start();
+
+        final boolean completed = done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        return completed;
+    }
+
+    private static String value(final String key, final int thread, final int op, final Random random) {
+        final StringBuilder value = new StringBuilder(key).append('#').append(thread).append('#').append(op).append('#');
+        final int padding = 100 + random.nextInt(900);
+        for (int i = 0; i < padding; i++) {
+            value.append((char) ('a' + random.nextInt(26)));
+        }
+        return value.toString();
+    }
+
+    /**
+     * Returns the files of the cache entries, leaving out the journal.
+     */
+    private static List<File> cacheFiles(final File directory) {
+        final List<File> files = new ArrayList<File>();
+        final File[] children = directory.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                if (child.isDirectory()) {
+                    files.addAll(cacheFiles(child));
+                } else if (!IndexJournal.isJournalFile(child)) {
+                    files.add(child);
+                }
+            }
+        }
+        return files;
+    }
+
+    private static void deleteRecursively(final File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,183 @@
+package com.wuzp.storagelib;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays request traces through each {@link EvictionPolicy} the way {@link DiskCache}
+ * drives it, and compares the hit ratios the policies achieve.
+ * <p>
+ * No recorded production traces ship with this library, so the traces are generated
+ * from a fixed seed to model the workloads those traces are known for: Zipf-distributed
+ * popularity, the same interleaved with one-off scans, and popular entries of very
+ * different sizes. The hit ratios are in the assertion messages.
+ */
+public class EvictionPolicySimulationTest {
+
+    private static final int KEYS = 10000;
+
+    private static final int REQUESTS = 200000;
+
+    private static final long CAPACITY = 500;
+
+    @Test
+    public void zipfTraceFavorsFrequencyAwarePolicies() {
+        final Trace trace = zipf(0.9, 1);
+        final double fifo = simulate(new FifoPolicy(), trace, CAPACITY);
+        final double lru = simulate(new LruPolicy(), trace, CAPACITY);
+        final double gdsf = simulate(new GdsfPolicy(), trace, CAPACITY);
+        final double tinyLfu = simulate(new TinyLfuPolicy(CAPACITY), trace, CAPACITY);
+
+        assertTrue("LRU " + lru + " below FIFO " + fifo, lru >= fifo);
+        assertTrue("GDSF " + gdsf + " not above LRU " + lru, gdsf > lru);
+        assertTrue("TinyLFU " + tinyLfu + " not above LRU " + lru, tinyLfu > lru);
+    }
+
+    @Test
+    public void scansDoNotFlushTinyLfu() {
+        final Trace plain = zipf(0.9, 1);
+        final Trace scanned = withScans(plain, 2000, 1000);
+        final double lru = simulate(new LruPolicy(), scanned, CAPACITY);
+        final double tinyLfu = simulate(new TinyLfuPolicy(CAPACITY), scanned, CAPACITY);
+        final double tinyLfuPlain = simulate(new TinyLfuPolicy(CAPACITY), plain, CAPACITY);
+
+        assertTrue("TinyLFU " + tinyLfu + " not well above LRU " + lru, tinyLfu > lru * 1.2);
+        // the scans are a third of the requests and can never hit, the rest should hit
+        // about as often as without scans
+        assertTrue("TinyLFU lost its working set: " + tinyLfu + " vs " + tinyLfuPlain, tinyLfu > tinyLfuPlain * 2 / 3 * 0.9);
+    }
+
+    @Test
+    public void gdsfKeepsSmallEntriesOverLargeOnes() {
+        // popular small entries compete with as popular entries a hundred times larger
+        final Random random = new Random(7);
+        final Trace trace = new Trace(REQUESTS);
+        for (int i = 0; i < REQUESTS; i++) {
+            final int key = random.nextInt(400);
+            trace.add("k" + key, key % 2 == 0 ? 1 : 100);
+        }
+
+        final double lru = simulate(new LruPolicy(), trace, 2000);
+        final double gdsf = simulate(new GdsfPolicy(), trace, 2000);
+
+        assertTrue("GDSF " + gdsf + " not above LRU " + lru, gdsf > lru);
+    }
+
+    @Test
+    public void bufferedReadsMatchDirectReads() {
+        final Trace trace = zipf(0.9, 1);
+        assertEquals(simulate(new LruPolicy(), trace, CAPACITY),
+            simulate(new BufferedAccessPolicy(new LruPolicy()), trace, CAPACITY), 0.01);
+        assertEquals(simulate(new TinyLfuPolicy(CAPACITY), trace, CAPACITY),
+            simulate(new BufferedAccessPolicy(new TinyLfuPolicy(CAPACITY)), trace, CAPACITY), 0.01);
+    }
+
+    /**
+     * Replays the trace through a cache of the given capacity evicting in the order of
+     * the policy, as {@link DiskCache} does: hits are reported as accesses, misses are
+     * put and then evicted for until the cache fits.
+     *
+     * @return The ratio of requests that hit.
+     */
+    private static double simulate(final EvictionPolicy policy, final Trace trace, final long capacity) {
+        final Map<String, Long> cached = new HashMap<String, Long>();
+        long size = 0;
+        long hits = 0;
+
+        for (int i = 0; i < trace.mLength; i++) {
+            final String key = trace.mKeys[i];
+            if (cached.containsKey(key)) {
+                hits++;
+                policy.onAccess(key);
+                continue;
+            }
+
+            cached.put(key, trace.mSizes[i]);
+            size += trace.mSizes[i];
+            policy.onPut(key, trace.mSizes[i]);
+            if (size > capacity) {
+                for (final Iterator<String> order = policy.evictionOrder(); order.hasNext() && size > capacity; ) {
+                    final String victim = order.next();
+                    final Long victimSize = cached.remove(victim);
+                    if (victimSize == null) {
+                        policy.onRemove(victim);
+                        continue;
+                    }
+                    size -= victimSize;
+                    policy.onEvict(victim);
+                }
+            }
+        }
+        return (double) hits / trace.mLength;
+    }
+
+    /**
+     * Returns a trace of unit-sized entries whose popularity follows a Zipf
+     * distribution with the given exponent.
+     */
+    private static Trace zipf(final double exponent, final long seed) {
+        final double[] cumulative = new double[KEYS];
+        double total = 0;
+        for (int i = 0; i < KEYS; i++) {
+            total += 1 / Math.pow(i + 1, exponent);
+            cumulative[i] = total;
+        }
+
+        final Random random = new Random(seed);
+        final Trace trace = new Trace(REQUESTS);
+        for (int i = 0; i < REQUESTS; i++) {
+            int rank = Arrays.binarySearch(cumulative, random.nextDouble() * total);
+            if (rank < 0) {
+                rank = -rank - 1;
+            }
+            trace.add("k" + Math.min(rank, KEYS - 1), 1);
+        }
+        return trace;
+    }
+
+    /**
+     * Interleaves the trace with scans of keys read only once: every interval
+     * requests, a scan of the given length.
+     */
+    private static Trace withScans(final Trace trace, final int interval, final int length) {
+        final Trace scanned = new Trace(trace.mLength + trace.mLength / interval * length);
+        int scanKey = 0;
+        for (int i = 0; i < trace.mLength; i++) {
+            scanned.add(trace.mKeys[i], trace.mSizes[i]);
+            if ((i + 1) % interval == 0) {
+                for (int j = 0; j < length; j++) {
+                    scanned.add("scan" + scanKey++, 1);
+                }
+            }
+        }
+        return scanned;
+    }
+
+    private static final class Trace {
+
+        final String[] mKeys;
+
+        final long[] mSizes;
+
+        int mLength;
+
+        Trace(final int capacity) {
+            this.mKeys = new String[capacity];
+            this.mSizes = new long[capacity];
+        }
+
+        void add(final String key, final long size) {
+            this.mKeys[this.mLength] = key;
+            this.mSizes[this.mLength] = size;
+            this.mLength++;
+        }
+    }
+}